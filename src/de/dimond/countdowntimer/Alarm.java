@@ -24,11 +24,14 @@ public class Alarm implements Comparable<Alarm>, Serializable {
     public final long m_when;
     public final String m_description;
     public final boolean m_isSilent;
+    /* Seconds the alarm may fire late so the system can batch it, 0 for exact alarms */
+    public final int m_tolerance;
 
-    public Alarm(long when, String description, boolean isSilent) {
+    public Alarm(long when, String description, boolean isSilent, int tolerance) {
         this.m_when = when;
         this.m_description = description;
         this.m_isSilent = isSilent;
+        this.m_tolerance = tolerance;
     }
 
     @Override
@@ -37,6 +40,7 @@ public class Alarm implements Comparable<Alarm>, Serializable {
         int result = 1;
         result = prime * result + ((m_description == null) ? 0 : m_description.hashCode());
         result = prime * result + (m_isSilent ? 1231 : 1237);
+        result = prime * result + m_tolerance;
         result = prime * result + (int) (m_when ^ (m_when >>> 32));
         return result;
     }
@@ -57,6 +61,8 @@ public class Alarm implements Comparable<Alarm>, Serializable {
             return false;
         if (m_isSilent != other.m_isSilent)
             return false;
+        if (m_tolerance != other.m_tolerance)
+            return false;
         if (m_when != other.m_when)
             return false;
         return true;
@@ -64,7 +70,8 @@ public class Alarm implements Comparable<Alarm>, Serializable {
 
     @Override
     public String toString() {
-        return "Alarm [m_when=" + m_when + ", m_isSilent=" + m_isSilent + ", m_description=" + m_description + "]";
+        return "Alarm [m_when=" + m_when + ", m_isSilent=" + m_isSilent + ", m_tolerance=" + m_tolerance
+                + ", m_description=" + m_description + "]";
     }
 
     @Override
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Binary format of the alarms file. A file consists of the magic number, the format version and the number of
+ * records, followed by the records and a CRC32 of everything before it. A record is the widget id, the deadline,
+ * the flags, the tolerance and the description as length prefixed UTF-8 (length -1 for no description).
+ *
+ * Files are replaced atomically through a temporary file, files written with Java serialization by earlier versions
+ * are migrated when read. The framing is shared with RecentTimers through frame(), openRecords() and isSerialized().
+ */
+public class AlarmFile {
+
+    private static final String TAG = "AlarmFile";
+
+    private static final int MAGIC = 0x43545741;
+    private static final int VERSION = 1;
+
+    /* First two bytes of a Java serialization stream */
+    private static final int LEGACY_MAGIC = 0xACED;
+
+    private static final int FLAG_SILENT = 1;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private AlarmFile() {
+    }
+
+    /* Reads the file into alarms, a missing file is the same as an empty one */
+    public static void read(Context context, String name, AlarmQueue alarms) throws IOException {
+        byte[] data;
+        try {
+            data = readFully(context.getFileStreamPath(name));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        if (data.length == 0) {
+            return;
+        }
+
+        if (isSerialized(data)) {
+            Log.i(TAG, "Migrating serialized alarms file");
+            readLegacy(data, alarms);
+            write(context, name, alarms);
+            return;
+        }
+
+        DataInputStream in = openRecords(data, MAGIC, VERSION);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int widgetId = in.readInt();
+            alarms.put(widgetId, readAlarm(in));
+        }
+    }
+
+    /* Returns the checksum of the written file, see checksum() */
+    public static int write(Context context, String name, AlarmQueue alarms) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream(32 * alarms.size());
+        DataOutputStream out = new DataOutputStream(records);
+        for (int i = 0; i < alarms.size(); i++) {
+            out.writeInt(alarms.idAt(i));
+            writeAlarm(out, alarms.alarmAt(i));
+        }
+        byte[] data = frame(MAGIC, VERSION, alarms.size(), records);
+
+        writeAtomically(context.getFileStreamPath(name), data);
+        return readInt(data, data.length - 4);
+    }
+
+    /* The complete file: magic number, version, count, the records and the CRC32 of everything before it */
+    static byte[] frame(int magic, int version, int count, ByteArrayOutputStream records) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + records.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(count);
+            records.writeTo(out);
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            /* Cannot happen when writing to memory */
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /* Checks the framing of a file written by frame() and returns a stream starting at the count */
+    static DataInputStream openRecords(byte[] data, int magic, int version) throws IOException {
+        if (data.length < 16) {
+            throw new IOException("File too short: " + data.length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if (readInt(data, data.length - 4) != (int) crc.getValue()) {
+            throw new IOException("Checksum mismatch");
+        }
+        if (readInt(data, 0) != magic) {
+            throw new IOException("Unknown magic number " + Integer.toHexString(readInt(data, 0)));
+        }
+        if (readInt(data, 4) != version) {
+            throw new IOException("Unknown file version " + readInt(data, 4));
+        }
+        return new DataInputStream(new ByteArrayInputStream(data, 8, data.length - 12));
+    }
+
+    /* Whether the file was written with Java serialization by an earlier version */
+    static boolean isSerialized(byte[] data) {
+        return data.length >= 2 && (((data[0] & 0xff) << 8) | (data[1] & 0xff)) == LEGACY_MAGIC;
+    }
+
+    /* The CRC32 at the end of the file, identifies its contents. 0 if there is no file or it cannot be read */
+    public static int checksum(Context context, String name) {
+        byte[] data;
+        try {
+            data = readFully(context.getFileStreamPath(name));
+        } catch (IOException e) {
+            return 0;
+        }
+        return (data.length < 4) ? 0 : readInt(data, data.length - 4);
+    }
+
+    static void writeAlarm(DataOutputStream out, Alarm alarm) throws IOException {
+        out.writeLong(alarm.m_when);
+        out.writeInt(alarm.m_isSilent ? FLAG_SILENT : 0);
+        out.writeInt(alarm.m_tolerance);
+        if (alarm.m_description == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] description = alarm.m_description.getBytes("UTF-8");
+            out.writeInt(description.length);
+            out.write(description);
+        }
+    }
+
+    static Alarm readAlarm(DataInputStream in) throws IOException {
+        long when = in.readLong();
+        int flags = in.readInt();
+        int tolerance = in.readInt();
+        int length = in.readInt();
+        String description = null;
+        if (length >= 0) {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            description = new String(bytes, "UTF-8");
+        }
+        return new Alarm(when, description, (flags & FLAG_SILENT) != 0, tolerance);
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    static void writeAtomically(File file, byte[] data) throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    throw new EOFException("File truncated while reading: " + file);
+                }
+                read += n;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readLegacy(byte[] data, AlarmQueue alarms) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            while (true) {
+                int widgetId = ois.readInt();
+                Object object = ois.readObject();
+                if (object == null) {
+                    break;
+                }
+                if (object instanceof Alarm) {
+                    alarms.put(widgetId, (Alarm) object);
+                } else {
+                    Log.w(TAG, "Object was not of class Alarm!");
+                }
+            }
+        } catch (EOFException e) {
+            /* That's ok, we read all the alarms */
+        } catch (ClassNotFoundException e) {
+            /* This should not happen, keep what we have read so far */
+            Log.w(TAG, e);
+        } finally {
+            ois.close();
+        }
+    }
+
+}
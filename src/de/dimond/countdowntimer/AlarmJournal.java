@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Append-only journal of alarm mutations on top of an AlarmFile snapshot. Mutations are collected and handed to a
+ * writer thread on commit(), which appends everything committed in quick succession with a single write. Once the
+ * journal grows beyond COMPACT_THRESHOLD the writer replaces the snapshot and empties the journal.
+ *
+ * A record is the payload length, the payload (operation, widget id and for OP_PUT the alarm) and a CRC32 of the
+ * payload. Replaying stops at the first incomplete or damaged record.
+ *
+ * Every journal starts with an OP_BASE record holding the checksum of the snapshot it applies to. A compaction writes
+ * the snapshot before emptying the journal, so after a crash in between the journal belongs to the previous snapshot
+ * and is ignored. It may lack mutations that are in the new snapshot, replaying it could bring back alarms that were
+ * removed since.
+ */
+public class AlarmJournal implements AlarmStore {
+
+    private static final String TAG = "AlarmJournal";
+    private static final boolean LOGD = false;
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final int COMPACT_THRESHOLD = 16 * 1024;
+
+    /* How long the writer waits for further commits before writing */
+    private static final long COALESCE_MILLIS = 200;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CLEAR = 3;
+    private static final byte OP_BASE = 4;
+
+    private final Context m_context;
+    private final String m_name;
+
+    /* Records since the last commit, only touched by the owning thread */
+    private final ByteArrayOutputStream m_pending = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream m_payload = new ByteArrayOutputStream();
+    private final DataOutputStream m_payloadOut = new DataOutputStream(m_payload);
+    private final CRC32 m_crc = new CRC32();
+
+    /* Journal size including everything committed, decides when to compact */
+    private long m_size;
+
+    /* Handed over to the writer, guarded by this */
+    private ByteArrayOutputStream m_committed = new ByteArrayOutputStream();
+    private AlarmQueue m_snapshot;
+    private long m_commitCount = 0;
+    private long m_writtenCount = 0;
+    private boolean m_flushRequested = false;
+    private boolean m_closed = false;
+    private boolean m_writeFailed = false;
+
+    /* Only touched by the writer after load() */
+    private File m_journal;
+    private FileOutputStream m_out;
+    private ByteArrayOutputStream m_writing = new ByteArrayOutputStream();
+
+    private Thread m_thread;
+
+    public AlarmJournal(Context context, String name) {
+        m_context = context;
+        m_name = name;
+    }
+
+    /* Restores the alarms from the snapshot and the journal and starts the writer */
+    @Override
+    public void load(AlarmQueue alarms) {
+        try {
+            AlarmFile.read(m_context, m_name, alarms);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        int base = AlarmFile.checksum(m_context, m_name);
+
+        m_journal = m_context.getFileStreamPath(m_name + JOURNAL_SUFFIX);
+        long length = replay(m_journal, alarms, base);
+
+        try {
+            if (m_journal.exists() && m_journal.length() > length) {
+                /* Cut off a damaged tail or a stale journal, records appended behind it would never be replayed */
+                Log.w(TAG, "Truncating journal from " + m_journal.length() + " to " + length + " bytes");
+                RandomAccessFile file = new RandomAccessFile(m_journal, "rw");
+                try {
+                    file.setLength(length);
+                } finally {
+                    file.close();
+                }
+            }
+            m_out = new FileOutputStream(m_journal, true);
+            if (length == 0) {
+                byte[] record = baseRecord(base);
+                m_out.write(record);
+                m_out.getFD().sync();
+                length = record.length;
+            }
+            m_size = length;
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+
+        m_thread = new Thread(new Writer(), TAG);
+        m_thread.start();
+    }
+
+    @Override
+    public void put(int widgetId, Alarm alarm) {
+        try {
+            m_payloadOut.writeByte(OP_PUT);
+            m_payloadOut.writeInt(widgetId);
+            AlarmFile.writeAlarm(m_payloadOut, alarm);
+        } catch (IOException e) {
+            /* Cannot happen when writing to memory */
+            Log.w(TAG, e);
+        }
+        appendPayload();
+    }
+
+    @Override
+    public void remove(int widgetId) {
+        try {
+            m_payloadOut.writeByte(OP_REMOVE);
+            m_payloadOut.writeInt(widgetId);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        appendPayload();
+    }
+
+    @Override
+    public void clear() {
+        try {
+            m_payloadOut.writeByte(OP_CLEAR);
+            m_payloadOut.writeInt(0);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        appendPayload();
+    }
+
+    private void appendPayload() {
+        byte[] payload = m_payload.toByteArray();
+        m_payload.reset();
+        m_crc.reset();
+        m_crc.update(payload);
+        writeInt(m_pending, payload.length);
+        m_pending.write(payload, 0, payload.length);
+        writeInt(m_pending, (int) m_crc.getValue());
+    }
+
+    /* The first record of a journal on top of the snapshot with the given checksum */
+    private static byte[] baseRecord(int base) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(13);
+        byte[] payload = { OP_BASE, (byte) (base >>> 24), (byte) (base >>> 16), (byte) (base >>> 8), (byte) base };
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        writeInt(record, payload.length);
+        record.write(payload, 0, payload.length);
+        writeInt(record, (int) crc.getValue());
+        return record.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /*
+     * Hands the mutations since the last commit to the writer and returns without waiting for them. alarms is the
+     * resulting state, it is copied when the journal is due for compaction.
+     */
+    @Override
+    public void commit(AlarmQueue alarms) {
+        if (m_pending.size() == 0) {
+            return;
+        }
+        m_size += m_pending.size();
+        synchronized (this) {
+            if (m_size > COMPACT_THRESHOLD || m_writeFailed) {
+                /* The snapshot contains everything committed so far */
+                m_snapshot = alarms.copy();
+                m_committed.reset();
+                m_size = 0;
+                m_writeFailed = false;
+            } else {
+                m_committed.write(m_pending.toByteArray(), 0, m_pending.size());
+            }
+            m_commitCount++;
+            notify();
+        }
+        m_pending.reset();
+    }
+
+    @Override
+    public synchronized void flush() {
+        long target = m_commitCount;
+        boolean interrupted = false;
+        while (m_writtenCount < target && m_thread != null && m_thread.isAlive()) {
+            m_flushRequested = true;
+            notify();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        synchronized (this) {
+            m_closed = true;
+            notify();
+        }
+    }
+
+    /* Whether a snapshot or a journal of the given name exists */
+    public static boolean exists(Context context, String name) {
+        return context.getFileStreamPath(name).exists() || context.getFileStreamPath(name + JOURNAL_SUFFIX).exists();
+    }
+
+    /* Removes the snapshot and the journal, the journal must be closed */
+    public void delete() {
+        m_context.deleteFile(m_name);
+        m_context.deleteFile(m_name + JOURNAL_SUFFIX);
+    }
+
+    private void write() {
+        AlarmQueue snapshot;
+        long commitCount;
+        synchronized (this) {
+            snapshot = m_snapshot;
+            m_snapshot = null;
+            ByteArrayOutputStream committed = m_committed;
+            m_committed = m_writing;
+            m_writing = committed;
+            commitCount = m_commitCount;
+        }
+
+        boolean failed = false;
+        if (m_out == null) {
+            Log.w(TAG, "Journal not open, dropping " + m_writing.size() + " bytes");
+        } else {
+            try {
+                if (snapshot != null) {
+                    /* Until the base record is written the old journal is stale and ignored by load() */
+                    int base = AlarmFile.write(m_context, m_name, snapshot);
+                    m_out.getChannel().truncate(0);
+                    m_out.write(baseRecord(base));
+                    if (LOGD)
+                        Log.d(TAG, "Compacted journal, " + snapshot.size() + " alarms");
+                }
+                m_writing.writeTo(m_out);
+                m_out.getFD().sync();
+            } catch (IOException e) {
+                /* The next commit writes a full snapshot instead */
+                Log.w(TAG, e);
+                failed = true;
+            }
+        }
+        m_writing.reset();
+
+        synchronized (this) {
+            m_writtenCount = commitCount;
+            m_writeFailed |= failed;
+            notifyAll();
+        }
+    }
+
+    private void closeFile() {
+        if (m_out == null) {
+            return;
+        }
+        try {
+            m_out.close();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        m_out = null;
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (AlarmJournal.this) {
+                        while (m_writtenCount == m_commitCount && !m_closed) {
+                            AlarmJournal.this.wait();
+                        }
+                        if (m_writtenCount == m_commitCount) {
+                            break;
+                        }
+                        /* Give further commits a chance to join this write */
+                        long start = SystemClock.elapsedRealtime();
+                        long remaining = COALESCE_MILLIS;
+                        while (remaining > 0 && !m_flushRequested && !m_closed) {
+                            AlarmJournal.this.wait(remaining);
+                            remaining = start + COALESCE_MILLIS - SystemClock.elapsedRealtime();
+                        }
+                        m_flushRequested = false;
+                    }
+                    write();
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, e);
+            } finally {
+                closeFile();
+                synchronized (AlarmJournal.this) {
+                    AlarmJournal.this.notifyAll();
+                }
+            }
+        }
+
+    }
+
+    /*
+     * Applies all intact records of the file to alarms and returns the length of the intact part, 0 without applying
+     * anything if the journal belongs to another snapshot than the one with the checksum base
+     */
+    private static long replay(File file, AlarmQueue alarms, int base) {
+        byte[] data;
+        try {
+            data = AlarmFile.readFully(file);
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            return 0;
+        }
+
+        CRC32 crc = new CRC32();
+        int offset = 0;
+        while (offset + 4 <= data.length) {
+            int length = AlarmFile.readInt(data, offset);
+            if (length < 0 || offset + 8 + length > data.length) {
+                break;
+            }
+            crc.reset();
+            crc.update(data, offset + 4, length);
+            if (AlarmFile.readInt(data, offset + 4 + length) != (int) crc.getValue()) {
+                break;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset + 4, length));
+            try {
+                byte op = in.readByte();
+                /* The snapshot checksum for OP_BASE */
+                int widgetId = in.readInt();
+                if (op == OP_BASE) {
+                    if (offset == 0 && widgetId != base) {
+                        Log.w(TAG, "Ignoring journal of an older snapshot");
+                        return 0;
+                    }
+                } else if (op == OP_PUT) {
+                    alarms.put(widgetId, AlarmFile.readAlarm(in));
+                } else if (op == OP_REMOVE) {
+                    alarms.remove(widgetId);
+                } else if (op == OP_CLEAR) {
+                    alarms.clear();
+                } else {
+                    Log.w(TAG, "Unknown journal operation " + op);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, e);
+                break;
+            }
+            offset += 8 + length;
+        }
+
+        if (offset < data.length) {
+            Log.w(TAG, "Ignoring " + (data.length - offset) + " damaged bytes at the end of " + file);
+        }
+        return offset;
+    }
+
+}
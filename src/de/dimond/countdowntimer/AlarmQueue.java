@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+/**
+ * Indexed priority queue of the pending alarms keyed by widget id. Adding, removing and rescheduling an alarm are
+ * O(log n), the earliest alarm is available in O(1).
+ *
+ * The heap is kept as parallel arrays of widget ids and deadlines, so sifting only touches primitive arrays. The
+ * alarms themselves are only needed by callers and are moved along in a third array.
+ */
+public class AlarmQueue {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    /* Binary min-heap ordered by m_whens, m_ids[i] is the widget and m_whens[i] the deadline of m_alarms[i] */
+    private int[] m_ids = new int[INITIAL_CAPACITY];
+    private long[] m_whens = new long[INITIAL_CAPACITY];
+    private Alarm[] m_alarms = new Alarm[INITIAL_CAPACITY];
+    private int m_size = 0;
+
+    /* Heap position of every widget id */
+    private final IntIntMap m_positions = new IntIntMap();
+
+    public int size() {
+        return m_size;
+    }
+
+    public boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    public boolean contains(int widgetId) {
+        return m_positions.containsKey(widgetId);
+    }
+
+    public Alarm get(int widgetId) {
+        int position = m_positions.get(widgetId, -1);
+        return (position == -1) ? null : m_alarms[position];
+    }
+
+    /* The second earliest alarm or null if there is none */
+    public Alarm peekSecond() {
+        if (m_size < 2) {
+            return null;
+        }
+        if (m_size == 2 || m_whens[1] <= m_whens[2]) {
+            return m_alarms[1];
+        }
+        return m_alarms[2];
+    }
+
+    /* Widget id of the earliest alarm, the queue must not be empty */
+    public int peekId() {
+        if (m_size == 0) {
+            throw new IllegalStateException("Queue is empty!");
+        }
+        return m_ids[0];
+    }
+
+    /* The earliest alarm or null if the queue is empty */
+    public Alarm peek() {
+        return (m_size == 0) ? null : m_alarms[0];
+    }
+
+    /* Adds the alarm or reschedules the alarm already present for the widget */
+    public void put(int widgetId, Alarm alarm) {
+        int i = m_positions.get(widgetId, -1);
+        if (i != -1) {
+            long oldWhen = m_whens[i];
+            m_whens[i] = alarm.m_when;
+            m_alarms[i] = alarm;
+            if (alarm.m_when < oldWhen) {
+                siftUp(i);
+            } else {
+                siftDown(i);
+            }
+            return;
+        }
+
+        if (m_size == m_ids.length) {
+            grow();
+        }
+        m_ids[m_size] = widgetId;
+        m_whens[m_size] = alarm.m_when;
+        m_alarms[m_size] = alarm;
+        m_positions.put(widgetId, m_size);
+        m_size++;
+        siftUp(m_size - 1);
+    }
+
+    /* Returns the removed alarm or null if there was none for the widget */
+    public Alarm remove(int widgetId) {
+        int i = m_positions.remove(widgetId, -1);
+        if (i == -1) {
+            return null;
+        }
+        Alarm removed = m_alarms[i];
+
+        m_size--;
+        if (i != m_size) {
+            long removedWhen = m_whens[i];
+            move(m_size, i);
+            if (m_whens[i] < removedWhen) {
+                siftUp(i);
+            } else {
+                siftDown(i);
+            }
+        }
+        m_alarms[m_size] = null;
+        return removed;
+    }
+
+    public void clear() {
+        for (int i = 0; i < m_size; i++) {
+            m_alarms[i] = null;
+        }
+        m_size = 0;
+        m_positions.clear();
+    }
+
+    public AlarmQueue copy() {
+        AlarmQueue copy = new AlarmQueue();
+        for (int i = 0; i < m_size; i++) {
+            copy.put(m_ids[i], m_alarms[i]);
+        }
+        return copy;
+    }
+
+    /* Access in heap order, for iterating over all alarms */
+    public int idAt(int index) {
+        return m_ids[index];
+    }
+
+    public Alarm alarmAt(int index) {
+        return m_alarms[index];
+    }
+
+    private void grow() {
+        int capacity = m_ids.length * 2;
+        int[] ids = new int[capacity];
+        long[] whens = new long[capacity];
+        Alarm[] alarms = new Alarm[capacity];
+        System.arraycopy(m_ids, 0, ids, 0, m_size);
+        System.arraycopy(m_whens, 0, whens, 0, m_size);
+        System.arraycopy(m_alarms, 0, alarms, 0, m_size);
+        m_ids = ids;
+        m_whens = whens;
+        m_alarms = alarms;
+    }
+
+    private void move(int from, int to) {
+        m_ids[to] = m_ids[from];
+        m_whens[to] = m_whens[from];
+        m_alarms[to] = m_alarms[from];
+        m_positions.put(m_ids[to], to);
+    }
+
+    private void siftUp(int i) {
+        int id = m_ids[i];
+        long when = m_whens[i];
+        Alarm alarm = m_alarms[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (m_whens[parent] <= when) {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        m_ids[i] = id;
+        m_whens[i] = when;
+        m_alarms[i] = alarm;
+        m_positions.put(id, i);
+    }
+
+    private void siftDown(int i) {
+        int id = m_ids[i];
+        long when = m_whens[i];
+        Alarm alarm = m_alarms[i];
+        int half = m_size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < m_size && m_whens[right] < m_whens[child]) {
+                child = right;
+            }
+            if (when <= m_whens[child]) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        m_ids[i] = id;
+        m_whens[i] = when;
+        m_alarms[i] = alarm;
+        m_positions.put(id, i);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < m_size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(m_ids[i]).append('=').append(m_alarms[i]);
+        }
+        return builder.append(']').toString();
+    }
+
+}
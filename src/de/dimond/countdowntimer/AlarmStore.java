@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+/**
+ * Persistent storage of the pending alarms. Mutations are reported with put(), remove() and clear() after they were
+ * applied to the queue and become durable once commit() was followed by flush().
+ */
+public interface AlarmStore {
+
+    /* Restores the stored alarms into alarms */
+    public void load(AlarmQueue alarms);
+
+    public void put(int widgetId, Alarm alarm);
+
+    public void remove(int widgetId);
+
+    public void clear();
+
+    /* Ends a group of mutations, alarms is the resulting state */
+    public void commit(AlarmQueue alarms);
+
+    /* Blocks until everything committed so far is on disk */
+    public void flush();
+
+    /* Flushes and releases the store, it must not be used afterwards */
+    public void close();
+
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Alarms stored in a memory mapped file of fixed size slots, found by open addressing on the widget id. Changing an
+ * alarm writes its own slot and nothing else. The mapped pages belong to the kernel, so a change survives the process
+ * being killed as soon as it was made, flush() is only needed to survive losing power.
+ *
+ * A slot is the state, the widget id, the deadline, the flags, the tolerance, the description as length prefixed
+ * UTF-8 (length -1 for no description) and a CRC32 of everything but the state. A description longer than
+ * DESCRIPTION_CAPACITY bytes is written to a file of its own, the slot then holds a prefix of it and its CRC32 in the
+ * last four bytes of the description, and the prefix is used if the file is lost.
+ * Removing an alarm only overwrites the state with a tombstone. The table is rebuilt once three quarters of the slots
+ * are in use or tombstones, with twice the slots if half of them are in use.
+ *
+ * The table is only used while the mapped storage is switched on in the settings. Otherwise moveToJournal() hands its
+ * alarms back to the AlarmJournal, just as load() takes over the alarms of a journal.
+ */
+public class AlarmTable implements AlarmStore {
+
+    private static final String TAG = "AlarmTable";
+    private static final boolean LOGD = false;
+
+    private static final String TABLE_SUFFIX = ".table";
+    private static final String DESCRIPTION_SUFFIX = ".description.";
+
+    private static final int MAGIC = 0x43545754;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 128;
+    private static final int INITIAL_SLOTS = 16;
+
+    /* Slot layout */
+    private static final int STATE = 0;
+    private static final int WIDGET_ID = 4;
+    private static final int WHEN = 8;
+    private static final int FLAGS = 16;
+    private static final int TOLERANCE = 20;
+    private static final int DESCRIPTION_LENGTH = 24;
+    private static final int DESCRIPTION = 26;
+    private static final int CHECKSUM = SLOT_SIZE - 4;
+
+    static final int DESCRIPTION_CAPACITY = CHECKSUM - DESCRIPTION;
+
+    /* Where a slot with FLAG_LONG_DESCRIPTION keeps the CRC32 of the full description */
+    private static final int LONG_DESCRIPTION_CHECKSUM = CHECKSUM - 4;
+
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_USED = 1;
+    private static final int STATE_DELETED = 2;
+
+    private static final int FLAG_SILENT = 1;
+    private static final int FLAG_LONG_DESCRIPTION = 2;
+
+    private final Context m_context;
+    private final String m_name;
+    private final File m_file;
+
+    private RandomAccessFile m_raf;
+    private MappedByteBuffer m_buffer;
+    private int m_slots;
+    private int m_used;
+    private int m_deleted;
+
+    private final byte[] m_slot = new byte[SLOT_SIZE];
+    private final ByteBuffer m_slotBuffer = ByteBuffer.wrap(m_slot);
+    private final CRC32 m_crc = new CRC32();
+
+    private AlarmTable(Context context, String name) {
+        m_context = context;
+        m_name = name;
+        m_file = context.getFileStreamPath(name + TABLE_SUFFIX);
+    }
+
+    /* Maps the table, creating it if necessary, returns null if the file cannot be mapped */
+    public static AlarmTable open(Context context, String name) {
+        AlarmTable table = new AlarmTable(context, name);
+        try {
+            table.map();
+            return table;
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            table.close();
+            return null;
+        }
+    }
+
+    private void map() throws IOException {
+        m_raf = new RandomAccessFile(m_file, "rw");
+        int slots = 0;
+        if (m_raf.length() >= HEADER_SIZE) {
+            int magic = m_raf.readInt();
+            int version = m_raf.readInt();
+            slots = m_raf.readInt();
+            int slotSize = m_raf.readInt();
+            if (magic != MAGIC || version != VERSION || slotSize != SLOT_SIZE || slots <= 0
+                    || (slots & (slots - 1)) != 0) {
+                Log.w(TAG, "Discarding unknown alarm table, version " + version + ", " + slots + " slots");
+                slots = 0;
+            }
+        }
+        if (slots == 0) {
+            slots = INITIAL_SLOTS;
+            m_raf.setLength(0);
+            m_raf.writeInt(MAGIC);
+            m_raf.writeInt(VERSION);
+            m_raf.writeInt(slots);
+            m_raf.writeInt(SLOT_SIZE);
+        }
+        long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        if (m_raf.length() < size) {
+            /* New slots read as empty */
+            m_raf.setLength(size);
+        }
+        m_buffer = m_raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        m_slots = slots;
+    }
+
+    @Override
+    public void load(AlarmQueue alarms) {
+        if (AlarmJournal.exists(m_context, m_name)) {
+            migrate(alarms);
+            return;
+        }
+
+        m_used = 0;
+        m_deleted = 0;
+        for (int slot = 0; slot < m_slots; slot++) {
+            int offset = offset(slot);
+            int state = m_buffer.getInt(offset + STATE);
+            if (state == STATE_DELETED) {
+                m_deleted++;
+            } else if (state == STATE_USED) {
+                Alarm alarm = readSlot(m_buffer, offset);
+                if (alarm != null) {
+                    alarms.put(m_slotBuffer.getInt(WIDGET_ID), alarm);
+                    m_used++;
+                } else {
+                    Log.w(TAG, "Dropping damaged slot " + slot);
+                    m_buffer.putInt(offset + STATE, STATE_DELETED);
+                    m_deleted++;
+                }
+            }
+        }
+        if (LOGD)
+            Log.d(TAG, "Loaded " + m_used + " alarms from " + m_slots + " slots");
+    }
+
+    /* Takes over the alarms of the journal used by earlier versions, with the mapped storage off or mapping failed */
+    private void migrate(AlarmQueue alarms) {
+        Log.i(TAG, "Migrating alarms from journal");
+        AlarmJournal journal = new AlarmJournal(m_context, m_name);
+        journal.load(alarms);
+        journal.close();
+
+        clear();
+        for (int i = 0; i < alarms.size(); i++) {
+            put(alarms.idAt(i), alarms.alarmAt(i));
+        }
+        flush();
+        journal.delete();
+    }
+
+    /*
+     * Moves the alarms of a table into the snapshot of the journal and deletes the table, does nothing if there is
+     * none. The table is read without mapping it, this also works when mapping failed. On failure the table is kept
+     * for the next try and the journal is left alone.
+     */
+    public static void moveToJournal(Context context, String name) {
+        AlarmTable table = new AlarmTable(context, name);
+        if (!table.m_file.exists()) {
+            return;
+        }
+        Log.i(TAG, "Migrating alarms to journal");
+        AlarmQueue alarms = new AlarmQueue();
+        try {
+            table.read(alarms);
+            /* A journal left over from before the table is older than it */
+            new AlarmJournal(context, name).delete();
+            AlarmFile.write(context, name, alarms);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            return;
+        }
+        for (int i = 0; i < alarms.size(); i++) {
+            context.deleteFile(table.descriptionName(alarms.idAt(i)));
+        }
+        table.m_file.delete();
+    }
+
+    /* Reads the alarms of the file with plain IO, damaged slots are skipped */
+    private void read(AlarmQueue alarms) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(AlarmFile.readFully(m_file));
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getInt(12) != SLOT_SIZE) {
+            throw new IOException("Unknown alarm table " + m_file);
+        }
+        int slots = buffer.getInt(8);
+        if (slots <= 0 || buffer.capacity() < HEADER_SIZE + (long) slots * SLOT_SIZE) {
+            throw new IOException("Alarm table truncated: " + m_file);
+        }
+        for (int slot = 0; slot < slots; slot++) {
+            int offset = offset(slot);
+            if (buffer.getInt(offset + STATE) != STATE_USED) {
+                continue;
+            }
+            Alarm alarm = readSlot(buffer, offset);
+            if (alarm != null) {
+                alarms.put(m_slotBuffer.getInt(WIDGET_ID), alarm);
+            } else {
+                Log.w(TAG, "Dropping damaged slot " + slot);
+            }
+        }
+    }
+
+    @Override
+    public void put(int widgetId, Alarm alarm) {
+        if (m_buffer == null) {
+            Log.w(TAG, "Alarm table not mapped, not storing alarm of widget " + widgetId);
+            return;
+        }
+        int slot = find(m_buffer, m_slots, widgetId);
+        boolean hadLongDescription = false;
+        if (slot < 0) {
+            if ((m_used + m_deleted + 1) * 4 > m_slots * 3 && !rebuild()) {
+                Log.w(TAG, "Could not rebuild alarm table with " + m_used + " alarms in " + m_slots + " slots");
+                if (m_buffer == null) {
+                    return;
+                }
+            }
+            slot = findFree(m_buffer, m_slots, widgetId);
+            if (slot < 0) {
+                /* Only if rebuilding failed over and over, the alarm stays in memory */
+                Log.w(TAG, "Alarm table full, not storing alarm of widget " + widgetId);
+                return;
+            }
+            if (m_buffer.getInt(offset(slot) + STATE) == STATE_DELETED) {
+                m_deleted--;
+            }
+            m_used++;
+        } else {
+            hadLongDescription = hasLongDescription(offset(slot));
+        }
+
+        /* The file is written first, the slot must never point to a description that is not there yet */
+        byte[] longDescription = fillSlot(widgetId, alarm);
+        if (longDescription != null) {
+            try {
+                AlarmFile.writeAtomically(m_context.getFileStreamPath(descriptionName(widgetId)), longDescription);
+            } catch (IOException e) {
+                /* The slot still has the prefix */
+                Log.w(TAG, e);
+            }
+        } else if (hadLongDescription) {
+            m_context.deleteFile(descriptionName(widgetId));
+        }
+        m_buffer.position(offset(slot));
+        m_buffer.put(m_slot);
+    }
+
+    @Override
+    public void remove(int widgetId) {
+        if (m_buffer == null) {
+            Log.w(TAG, "Alarm table not mapped, not removing alarm of widget " + widgetId);
+            return;
+        }
+        int slot = find(m_buffer, m_slots, widgetId);
+        if (slot >= 0) {
+            boolean hadLongDescription = hasLongDescription(offset(slot));
+            m_buffer.putInt(offset(slot) + STATE, STATE_DELETED);
+            m_used--;
+            m_deleted++;
+            if (hadLongDescription) {
+                m_context.deleteFile(descriptionName(widgetId));
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        if (m_buffer == null) {
+            return;
+        }
+        for (int slot = 0; slot < m_slots; slot++) {
+            int offset = offset(slot);
+            if (m_buffer.getInt(offset + STATE) == STATE_USED && hasLongDescription(offset)) {
+                m_context.deleteFile(descriptionName(m_buffer.getInt(offset + WIDGET_ID)));
+            }
+            m_buffer.putInt(offset + STATE, STATE_EMPTY);
+        }
+        m_used = 0;
+        m_deleted = 0;
+    }
+
+    @Override
+    public void commit(AlarmQueue alarms) {
+        /* Every change already is in the mapping */
+    }
+
+    @Override
+    public void flush() {
+        if (m_buffer != null) {
+            m_buffer.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        m_buffer = null;
+        if (m_raf != null) {
+            try {
+                m_raf.close();
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+            m_raf = null;
+        }
+    }
+
+    /* Replaces the file by one holding only the alarms, returns false if the old table had to be kept */
+    private boolean rebuild() {
+        int slots = (m_used * 2 >= m_slots) ? m_slots * 2 : m_slots;
+        if (LOGD)
+            Log.d(TAG, "Rebuilding table with " + m_used + " alarms into " + slots + " slots");
+
+        byte[] data = new byte[HEADER_SIZE + slots * SLOT_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(slots);
+        buffer.putInt(SLOT_SIZE);
+        for (int slot = 0; slot < m_slots; slot++) {
+            int offset = offset(slot);
+            if (m_buffer.getInt(offset + STATE) != STATE_USED) {
+                continue;
+            }
+            /* The new table has at least as many slots as the old one has alarms */
+            int target = findFree(buffer, slots, m_buffer.getInt(offset + WIDGET_ID));
+            m_buffer.position(offset);
+            m_buffer.get(data, offset(target), SLOT_SIZE);
+        }
+
+        try {
+            AlarmFile.writeAtomically(m_file, data);
+        } catch (IOException e) {
+            /* The file was not replaced, the old mapping stays valid, it only has less room */
+            Log.w(TAG, e);
+            return false;
+        }
+
+        /* From here on the old mapping belongs to a deleted file, nothing written to it would survive */
+        m_buffer = null;
+        try {
+            m_raf.close();
+            map();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            Log.w(TAG, "Could not map rebuilt alarm table, alarms are no longer stored");
+            close();
+            return false;
+        }
+        m_deleted = 0;
+        return true;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int hash(int widgetId) {
+        int h = widgetId * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /* Slot of the widget or -1 if it has none */
+    private static int find(ByteBuffer buffer, int slots, int widgetId) {
+        int mask = slots - 1;
+        int slot = hash(widgetId) & mask;
+        for (int n = 0; n < slots; n++) {
+            int offset = offset(slot);
+            int state = buffer.getInt(offset + STATE);
+            if (state == STATE_EMPTY) {
+                return -1;
+            }
+            if (state == STATE_USED && buffer.getInt(offset + WIDGET_ID) == widgetId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /* First empty slot or tombstone on the probe sequence of the widget, -1 if every slot is in use */
+    private static int findFree(ByteBuffer buffer, int slots, int widgetId) {
+        int mask = slots - 1;
+        int slot = hash(widgetId) & mask;
+        for (int n = 0; n < slots; n++) {
+            if (buffer.getInt(offset(slot) + STATE) != STATE_USED) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private String descriptionName(int widgetId) {
+        return m_name + DESCRIPTION_SUFFIX + widgetId;
+    }
+
+    private boolean hasLongDescription(int offset) {
+        return (m_buffer.getInt(offset + FLAGS) & FLAG_LONG_DESCRIPTION) != 0;
+    }
+
+    /* Encodes the alarm into m_slot, returns the encoded description if it has to go into a file of its own */
+    private byte[] fillSlot(int widgetId, Alarm alarm) {
+        byte[] longDescription = null;
+        int flags = alarm.m_isSilent ? FLAG_SILENT : 0;
+        int length = -1;
+        if (alarm.m_description != null) {
+            byte[] description = encode(alarm.m_description);
+            if (description.length > DESCRIPTION_CAPACITY) {
+                longDescription = description;
+                flags |= FLAG_LONG_DESCRIPTION;
+                length = truncatedLength(description, LONG_DESCRIPTION_CHECKSUM - DESCRIPTION);
+            } else {
+                length = description.length;
+            }
+            System.arraycopy(description, 0, m_slot, DESCRIPTION, length);
+        }
+        m_slotBuffer.putInt(STATE, STATE_USED);
+        m_slotBuffer.putInt(WIDGET_ID, widgetId);
+        m_slotBuffer.putLong(WHEN, alarm.m_when);
+        m_slotBuffer.putInt(FLAGS, flags);
+        m_slotBuffer.putInt(TOLERANCE, alarm.m_tolerance);
+        m_slotBuffer.putShort(DESCRIPTION_LENGTH, (short) length);
+        for (int i = DESCRIPTION + Math.max(length, 0); i < CHECKSUM; i++) {
+            m_slot[i] = 0;
+        }
+        if (longDescription != null) {
+            m_crc.reset();
+            m_crc.update(longDescription);
+            m_slotBuffer.putInt(LONG_DESCRIPTION_CHECKSUM, (int) m_crc.getValue());
+        }
+        m_crc.reset();
+        m_crc.update(m_slot, WIDGET_ID, CHECKSUM - WIDGET_ID);
+        m_slotBuffer.putInt(CHECKSUM, (int) m_crc.getValue());
+        return longDescription;
+    }
+
+    /* Copies the slot into m_slot and decodes it, returns null if the checksum does not match */
+    private Alarm readSlot(ByteBuffer buffer, int offset) {
+        buffer.position(offset);
+        buffer.get(m_slot);
+        m_crc.reset();
+        m_crc.update(m_slot, WIDGET_ID, CHECKSUM - WIDGET_ID);
+        if (m_slotBuffer.getInt(CHECKSUM) != (int) m_crc.getValue()) {
+            return null;
+        }
+        int length = m_slotBuffer.getShort(DESCRIPTION_LENGTH);
+        if (length > DESCRIPTION_CAPACITY) {
+            return null;
+        }
+        int flags = m_slotBuffer.getInt(FLAGS);
+        String description = null;
+        if (length >= 0) {
+            description = decode(m_slot, DESCRIPTION, length);
+            if ((flags & FLAG_LONG_DESCRIPTION) != 0) {
+                description = readLongDescription(m_slotBuffer.getInt(WIDGET_ID), description);
+            }
+        }
+        return new Alarm(m_slotBuffer.getLong(WHEN), description, (flags & FLAG_SILENT) != 0,
+                m_slotBuffer.getInt(TOLERANCE));
+    }
+
+    /* The description from its own file, or the prefix from the slot if the file is missing or does not match */
+    private String readLongDescription(int widgetId, String prefix) {
+        byte[] description;
+        try {
+            description = AlarmFile.readFully(m_context.getFileStreamPath(descriptionName(widgetId)));
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            return prefix;
+        }
+        m_crc.reset();
+        m_crc.update(description);
+        if (m_slotBuffer.getInt(LONG_DESCRIPTION_CHECKSUM) != (int) m_crc.getValue()) {
+            Log.w(TAG, "Description of widget " + widgetId + " does not match its slot");
+            return prefix;
+        }
+        return decode(description, 0, description.length);
+    }
+
+    private static byte[] encode(String description) {
+        try {
+            return description.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            /* Every Java platform supports UTF-8 */
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(byte[] utf8, int offset, int length) {
+        try {
+            return new String(utf8, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Length of the longest prefix of at most capacity bytes that does not cut a UTF-8 sequence */
+    static int truncatedLength(byte[] utf8, int capacity) {
+        if (utf8.length <= capacity) {
+            return utf8.length;
+        }
+        int length = capacity;
+        /* Continuation bytes look like 10xxxxxx */
+        while (length > 0 && (utf8[length] & 0xc0) == 0x80) {
+            length--;
+        }
+        return length;
+    }
+
+}
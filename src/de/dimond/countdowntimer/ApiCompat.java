@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+/**
+ * Access to platform APIs newer than the SDK this project is built against. Every method is looked up once by
+ * reflection, callers have to check for availability first.
+ */
+public class ApiCompat {
+
+    private static final String TAG = "ApiCompat";
+
+    private static final Method s_partiallyUpdateAppWidget = getMethod(AppWidgetManager.class,
+            "partiallyUpdateAppWidget", int.class, RemoteViews.class);
+    private static final Method s_setChronometerCountDown = getMethod(RemoteViews.class, "setChronometerCountDown",
+            int.class, boolean.class);
+    private static final Method s_setWindow = getMethod(AlarmManager.class, "setWindow", int.class, long.class,
+            long.class, PendingIntent.class);
+    private static final Method s_isScreenOn = getMethod(PowerManager.class, "isScreenOn");
+    private static final Method s_startForeground = getMethod(Service.class, "startForeground", int.class,
+            Notification.class);
+    private static final Method s_stopForeground = getMethod(Service.class, "stopForeground", boolean.class);
+
+    private ApiCompat() {
+    }
+
+    private static Method getMethod(Class<?> cls, String name, Class<?>... parameterTypes) {
+        try {
+            return cls.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object receiver, Object... args) {
+        try {
+            return method.invoke(receiver, args);
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, e);
+            return null;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            Log.w(TAG, cause);
+            return null;
+        }
+    }
+
+    /* Available since Honeycomb (API 11) */
+    public static boolean hasPartialWidgetUpdates() {
+        return s_partiallyUpdateAppWidget != null;
+    }
+
+    public static void partiallyUpdateAppWidget(AppWidgetManager manager, int widgetId, RemoteViews views) {
+        invoke(s_partiallyUpdateAppWidget, manager, widgetId, views);
+    }
+
+    /* Available since Nougat (API 24) */
+    public static boolean hasChronometerCountDown() {
+        return s_setChronometerCountDown != null;
+    }
+
+    public static void setChronometerCountDown(RemoteViews views, int viewId, boolean isCountDown) {
+        invoke(s_setChronometerCountDown, views, viewId, isCountDown);
+    }
+
+    /* Available since KitKat (API 19) */
+    public static boolean hasAlarmWindows() {
+        return s_setWindow != null;
+    }
+
+    public static void setWindow(AlarmManager manager, int type, long windowStart, long windowLength,
+            PendingIntent operation) {
+        invoke(s_setWindow, manager, type, windowStart, windowLength, operation);
+    }
+
+    /* Available since Eclair MR1 (API 7), assumes the screen is on where it is not */
+    public static boolean isScreenOn(Context context) {
+        if (s_isScreenOn == null) {
+            return true;
+        }
+        PowerManager manager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return !Boolean.FALSE.equals(invoke(s_isScreenOn, manager));
+    }
+
+    /* Available since Eclair (API 5), before the notification is posted and the old foreground flag is set */
+    public static void startForeground(Service service, int id, Notification notification) {
+        if (s_startForeground != null) {
+            invoke(s_startForeground, service, id, notification);
+            return;
+        }
+        service.setForeground(true);
+        NotificationManager manager = (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(id, notification);
+    }
+
+    /* Removes the notification posted by startForeground() */
+    public static void stopForeground(Service service, int id) {
+        if (s_stopForeground != null) {
+            invoke(s_stopForeground, service, true);
+            return;
+        }
+        NotificationManager manager = (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.cancel(id);
+        service.setForeground(false);
+    }
+
+}
@@ -16,54 +16,154 @@
 
 package de.dimond.countdowntimer;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
-import android.appwidget.AppWidgetManager;
 import android.content.Context;
+import android.os.Parcel;
 import android.os.SystemClock;
 import android.util.Log;
 import android.widget.RemoteViews;
 
+/**
+ * Keeps the widget of a running timer up to date. Every method must be called on the TickScheduler thread.
+ */
 public class CountdownTask {
 
     private final Context m_context;
-    private final RemoteViews m_views;
     private final int m_widgetId;
+    private final String m_description;
     private final long m_when;
 
-    private Timer m_timer;
+    private CountdownTimerTask m_task;
+    private int m_interval = 1;
 
     private int m_lastRemainingTime = -1;
 
+    /*
+     * Hours, minutes and seconds are separate views, with partial updates a tick only sets the ones that changed.
+     * m_submitted is the state of the last update submitted, m_base the state the launcher has once every update sent
+     * so far is applied. A delta is always computed against m_base, so it still holds when it replaces an update the
+     * dispatcher had not sent yet.
+     */
+    private final int[] m_parts = new int[3];
+    private final int[] m_submitted = { -1, -1, -1 };
+    private final int[] m_base = { -1, -1, -1 };
+    private static final int[] PART_IDS = { R.id.hours_text, R.id.minutes_text, R.id.seconds_text };
+
+    /* Whether the launcher has the full layout, views are built when they are sent and never kept */
+    private boolean m_fullUpdateSent = false;
+
+    /* Whether the launcher counts down by itself, see ApiCompat.hasChronometerCountDown() */
+    private boolean m_hostTicking = false;
+
+    /* Whether ticks are snapped to the shared phase, see nextTickDelay() */
+    private boolean m_sharedTick = false;
+
+    private int m_fullPayloadSize = -1;
+    private int m_tickPayloadSize = -1;
+
     private static final String TAG = "CountdownTask";
     private static final boolean LOGD = false;
 
-    private class CountdownTimerTask extends TimerTask {
+    /*
+     * Display granularity in seconds depending on the remaining time, each level applies from its lower bound on.
+     * The refresh interval setting is the finest granularity that is ever used.
+     */
+    private static final int[] GRANULARITY_BOUNDS = { 3600, 600, 0 };
+    private static final int[] GRANULARITIES = { 60, 10, 1 };
+
+    /* Shared ticks happen on whole multiples of this in the elapsedRealtime() time base */
+    private static final long SHARED_TICK_PERIOD = 1000;
+
+    private class CountdownTimerTask extends TickScheduler.Task {
 
         @Override
         public void run() {
             refresh();
+            /* refresh() stops the timer once the countdown reached zero */
+            if (m_task == this) {
+                TickScheduler.getInstance().schedule(this, nextTickDelay());
+            }
         }
 
     }
 
-    public CountdownTask(Context context, RemoteViews views, int widgetId, long when) {
+    public CountdownTask(Context context, int widgetId, String description, long when) {
         m_context = context;
-        m_views = views;
         m_widgetId = widgetId;
+        m_description = description;
         m_when = when;
     }
 
+    public void setHostTicking(boolean hostTicking) {
+        if (m_hostTicking == hostTicking) {
+            return;
+        }
+        stopTimer();
+        m_hostTicking = hostTicking;
+        /* The launcher has to switch layouts */
+        m_fullUpdateSent = false;
+        m_lastRemainingTime = -1;
+    }
+
+    /* Takes effect with the next start() */
+    public void setSharedTick(boolean sharedTick) {
+        m_sharedTick = sharedTick;
+    }
+
     public void start(int interval) {
         stopTimer();
-        m_timer = new Timer();
-        if (interval == 1) {
-            interval = 200;
-        } else {
-            interval = interval * 1000;
+        m_interval = interval;
+        if (m_hostTicking) {
+            /* Nothing to tick, the expiry is handled by the alarm */
+            if (!m_fullUpdateSent) {
+                refresh();
+            }
+            return;
+        }
+        m_task = new CountdownTimerTask();
+        TickScheduler.getInstance().schedule(m_task, 0);
+    }
+
+    private static int granularityLevel(int remainingTime) {
+        int level = 0;
+        while (remainingTime < GRANULARITY_BOUNDS[level]) {
+            level++;
         }
-        m_timer.scheduleAtFixedRate(new CountdownTimerTask(), 0, interval);
+        return level;
+    }
+
+    /* Rounds up, so the display never shows less time than is actually left */
+    private int displayedTime(int remainingTime) {
+        int granularity = Math.max(m_interval, GRANULARITIES[granularityLevel(remainingTime)]);
+        return ((remainingTime + granularity - 1) / granularity) * granularity;
+    }
+
+    /*
+     * Returns the delay until either the displayed time changes or the granularity level is left. The delay is
+     * always computed from the current time, so ticks missed while the CPU was busy are skipped instead of being
+     * caught up.
+     *
+     * With a shared tick the delay is rounded up to the next shared tick, so all tasks whose display changes within
+     * the same period wake up together and are drawn in one pass. A change is then shown up to one period late,
+     * while the display shows between 1 second less and granularity - 1 seconds more than is left. Together the
+     * shown time is off by less than the granularity.
+     */
+    private long nextTickDelay() {
+        long now = SystemClock.elapsedRealtime();
+        long remaining = m_when - now;
+        int remainingTime = (int) (remaining / 1000);
+        if (remainingTime <= 0) {
+            return 0;
+        }
+        int level = granularityLevel(remainingTime);
+        int granularity = Math.max(m_interval, GRANULARITIES[level]);
+        int next = Math.max(displayedTime(remainingTime) - granularity, GRANULARITY_BOUNDS[level] - 1);
+        /* remainingTime drops to next as soon as less than next + 1 seconds are left */
+        long delay = remaining - (next + 1) * 1000L + 1;
+        if (m_sharedTick) {
+            long tick = ((now + delay + SHARED_TICK_PERIOD - 1) / SHARED_TICK_PERIOD) * SHARED_TICK_PERIOD;
+            delay = tick - now;
+        }
+        return delay;
     }
 
     public void refresh() {
@@ -73,32 +173,101 @@ public class CountdownTask {
             stopTimer();
         }
 
+        if (m_hostTicking) {
+            if (remainingTime > 0) {
+                if (!m_fullUpdateSent) {
+                    m_fullUpdateSent = true;
+                    UpdateDispatcher.getInstance().submit(m_context, m_widgetId,
+                            CountdownTimerAppWidgetProvider.buildChronometerView(m_context, m_widgetId, m_description,
+                                    m_when), false, m_when);
+                }
+                return;
+            }
+            /* Expired, replace the Chronometer with the time */
+            m_fullUpdateSent = false;
+        }
+
+        int displayedTime = displayedTime(remainingTime);
+
         /* only update the view if anything has changed */
-        if (m_lastRemainingTime == remainingTime) {
+        if (m_lastRemainingTime == displayedTime) {
             if (LOGD)
                 Log.d(TAG, "No update!");
             return;
         }
 
-        m_lastRemainingTime = remainingTime;
+        m_lastRemainingTime = displayedTime;
 
-        int seconds = remainingTime % 60;
-        int minutes = (remainingTime / 60) % 60;
-        int hours = remainingTime / 3600;
+        sendParts(UpdateDispatcher.getInstance(), displayedTime);
+    }
 
-        String time = String.format("%02d:%02d:%02d", hours, minutes, seconds);
+    private void sendParts(UpdateDispatcher dispatcher, int displayedTime) {
+        m_parts[0] = displayedTime / 3600;
+        m_parts[1] = (displayedTime / 60) % 60;
+        m_parts[2] = displayedTime % 60;
 
         if (LOGD)
-            Log.d(TAG, "Update: " + time);
+            Log.d(TAG, "Update: " + m_parts[0] + ":" + m_parts[1] + ":" + m_parts[2]);
+
+        if (m_fullUpdateSent && ApiCompat.hasPartialWidgetUpdates() && !dispatcher.isFullUpdatePending(m_widgetId)) {
+            if (!dispatcher.isUpdatePending(m_widgetId)) {
+                /* The last update was sent, the launcher shows it */
+                System.arraycopy(m_submitted, 0, m_base, 0, 3);
+            }
+            /* The launcher already has the layout, only send the parts that changed */
+            RemoteViews views = CountdownTimerAppWidgetProvider.buildPartialView(m_context);
+            for (int i = 0; i < 3; i++) {
+                if (m_parts[i] != m_base[i]) {
+                    views.setTextViewText(PART_IDS[i], TimeFormatter.formatPart(m_parts[i]));
+                }
+            }
+            if (m_tickPayloadSize == -1) {
+                m_tickPayloadSize = payloadSize(views);
+            }
+            dispatcher.submit(m_context, m_widgetId, views, true, m_when);
+        } else {
+            /*
+             * Either the first update, a platform without partial updates or the full update has not been sent
+             * yet and is replaced. Never reuse a RemoteViews for this, its action list would grow with every tick.
+             */
+            m_fullUpdateSent = true;
+            RemoteViews views = CountdownTimerAppWidgetProvider.buildRemoteView(m_context, m_widgetId, m_description);
+            CountdownTimerAppWidgetProvider.setTime(views, m_parts[0], m_parts[1], m_parts[2]);
+            /* Nothing is known about the launcher until this is sent, deltas are computed against it */
+            System.arraycopy(m_parts, 0, m_base, 0, 3);
+            if (m_fullPayloadSize == -1) {
+                m_fullPayloadSize = payloadSize(views);
+            }
+            dispatcher.submit(m_context, m_widgetId, views, false, m_when);
+        }
+        System.arraycopy(m_parts, 0, m_submitted, 0, 3);
+    }
+
+    private static int payloadSize(RemoteViews views) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            views.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /* Size in bytes of the RemoteViews sent with the full update, -1 if not sent yet */
+    public int getFullPayloadSize() {
+        return m_fullPayloadSize;
+    }
 
-        m_views.setTextViewText(R.id.timer_text, time);
-        AppWidgetManager.getInstance(m_context).updateAppWidget(m_widgetId, m_views);
+    /* Size in bytes of the RemoteViews sent with every partial update, -1 if not sent yet */
+    public int getTickPayloadSize() {
+        return m_tickPayloadSize;
     }
 
     public void reset() {
         stopTimer();
-        m_views.setTextViewText(R.id.timer_text, m_context.getText(R.string.timer_uninitialised));
-        AppWidgetManager.getInstance(m_context).updateAppWidget(m_widgetId, m_views);
+        /* The idle view shows 00:00:00 */
+        UpdateDispatcher.getInstance().submit(m_context, m_widgetId, WidgetCache.getIdleView(m_context, m_widgetId),
+                false, 0);
     }
 
     public void stop() {
@@ -106,11 +275,11 @@ public class CountdownTask {
     }
 
     private void stopTimer() {
-        if (m_timer == null) {
+        if (m_task == null) {
             return;
         }
-        m_timer.cancel();
-        m_timer = null;
+        m_task.cancel();
+        m_task = null;
     }
 
 }
\ No newline at end of file
@@ -21,9 +21,14 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
+import android.view.View;
 import android.widget.RemoteViews;
 
+/**
+ * There is a single widget layout, so switching between states never makes the launcher inflate a new one. A full
+ * update may be applied on top of the views of an earlier one, so every view a state hides or changes is set
+ * explicitly.
+ */
 public class CountdownTimerAppWidgetProvider extends AppWidgetProvider {
 
     @Override
@@ -38,8 +43,7 @@ public class CountdownTimerAppWidgetProvider extends AppWidgetProvider {
             intent.putExtra(CountdownTimerService.INTENT_DATA_WIDGET_ID, appWidgetId);
             context.startService(intent);
 
-            RemoteViews views = buildRemoteView(context, appWidgetId, null);
-            appWidgetManager.updateAppWidget(appWidgetId, views);
+            appWidgetManager.updateAppWidget(appWidgetId, WidgetCache.getIdleView(context, appWidgetId));
         }
     }
 
@@ -65,24 +69,70 @@ public class CountdownTimerAppWidgetProvider extends AppWidgetProvider {
         }
     }
 
+    /* Builds the view of a running timer, the caller sets the time with setTime() */
     public static RemoteViews buildRemoteView(Context context, int widgetId, String description) {
-        Intent intent = new Intent(context, NewTimerActivity.class);
-        intent.setData(Uri.parse("widget://" + widgetId));
+        PendingIntent pendingIntent = WidgetCache.getClickIntent(context, widgetId);
 
-        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        intent.putExtra(CountdownTimerService.INTENT_DATA_WIDGET_ID, widgetId);
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.countdown_timer_widget);
+        setDescription(views, description);
+        setTimeVisibility(views, View.VISIBLE);
+        views.setChronometer(R.id.timer_chronometer, 0, null, false);
+        views.setViewVisibility(R.id.timer_chronometer, View.GONE);
+        views.setOnClickPendingIntent(R.id.widget, pendingIntent);
 
-        PendingIntent pendingIntent = PendingIntent.getActivity(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        return views;
+    }
 
-        RemoteViews views;
-        if (description == null) {
-            views = new RemoteViews(context.getPackageName(), R.layout.countdown_timer_widget);
-        } else {
-            views = new RemoteViews(context.getPackageName(), R.layout.countdown_timer_widget_desc);
+    /* Builds the view of a widget without a running timer */
+    public static RemoteViews buildIdleView(Context context, int widgetId) {
+        RemoteViews views = buildRemoteView(context, widgetId, null);
+        setTime(views, 0, 0, 0);
+        return views;
+    }
+
+    /*
+     * Builds a view on which the launcher counts down to when by itself, see ApiCompat.hasChronometerCountDown().
+     * The base of a Chronometer is in the elapsedRealtime() time base, just like Alarm.m_when.
+     */
+    public static RemoteViews buildChronometerView(Context context, int widgetId, String description, long when) {
+        PendingIntent pendingIntent = WidgetCache.getClickIntent(context, widgetId);
+
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.countdown_timer_widget);
+        setDescription(views, description);
+        setTimeVisibility(views, View.GONE);
+        views.setViewVisibility(R.id.timer_chronometer, View.VISIBLE);
+        views.setChronometer(R.id.timer_chronometer, when, null, true);
+        ApiCompat.setChronometerCountDown(views, R.id.timer_chronometer, true);
+        views.setOnClickPendingIntent(R.id.widget, pendingIntent);
+
+        return views;
+    }
+
+    /* Views for partial updates of the time */
+    public static RemoteViews buildPartialView(Context context) {
+        return new RemoteViews(context.getPackageName(), R.layout.countdown_timer_widget);
+    }
+
+    public static void setTime(RemoteViews views, int hours, int minutes, int seconds) {
+        views.setTextViewText(R.id.hours_text, TimeFormatter.formatPart(hours));
+        views.setTextViewText(R.id.minutes_text, TimeFormatter.formatPart(minutes));
+        views.setTextViewText(R.id.seconds_text, TimeFormatter.formatPart(seconds));
+    }
+
+    private static void setDescription(RemoteViews views, String description) {
+        if (description != null) {
             views.setTextViewText(R.id.description_text, description);
+            views.setViewVisibility(R.id.description_text, View.VISIBLE);
+        } else {
+            views.setViewVisibility(R.id.description_text, View.GONE);
         }
-        views.setOnClickPendingIntent(R.id.timer_text, pendingIntent);
+    }
 
-        return views;
+    private static void setTimeVisibility(RemoteViews views, int visibility) {
+        views.setViewVisibility(R.id.hours_text, visibility);
+        views.setViewVisibility(R.id.hours_separator, visibility);
+        views.setViewVisibility(R.id.minutes_text, visibility);
+        views.setViewVisibility(R.id.seconds_separator, visibility);
+        views.setViewVisibility(R.id.seconds_text, visibility);
     }
 }
@@ -16,24 +16,24 @@
 
 package de.dimond.countdowntimer;
 
-import java.io.EOFException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -47,7 +47,10 @@ import android.os.IBinder;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.Settings;
+import android.text.format.DateFormat;
 import android.util.Log;
+import android.util.SparseArray;
+import android.view.View;
 import android.widget.RemoteViews;
 
 public class CountdownTimerService extends Service implements SharedPreferences.OnSharedPreferenceChangeListener {
@@ -61,20 +64,51 @@ public class CountdownTimerService extends Service implements SharedPreferences.
     public static final String INTENT_RESET_WIDGET = "de.dimond.countdowntimer.intent.ACTION_RESET_WIDGET";
 
     public static final String INTENT_DATA_WIDGET_ID = "WIDGET_ID";
-    public static final String INTENT_DATA_IS_SILENT = "IS_SILENT";
     private static final String VIBRATE_KEY = "CTW_VIBRATE";
     private static final String INSISTENT_KEY = "CTW_INSISTENT";
     private static final String RINGTONE_KEY = "CTW_RINGTONE";
     private static final String REFRESH_INTERVAL_KEY = "CTW_REFRESH_INTERVAL";
     private static final String VOLUME_SOURCE_KEY = "CTW_VOLUME_SOURCE";
+    private static final String HOST_TICKING_KEY = "CTW_HOST_TICKING";
+    private static final String MAX_UPDATES_KEY = "CTW_MAX_UPDATES";
+    private static final String SHARED_TICK_KEY = "CTW_SHARED_TICK";
+    private static final String ONGOING_KEY = "CTW_ONGOING_NOTIFICATION";
+    private static final String MAPPED_ALARMS_KEY = "CTW_MAPPED_ALARMS";
+
+    /*
+     * Alarm notifications use the widget id, which is always positive. startForeground() does not accept 0, it
+     * leaves the foreground instead of posting the notification.
+     */
+    private static final int ONGOING_NOTIFICATION_ID = -1;
 
     private static final String ALARMS_FILE = "alarms";
+    private static final String LATENCY_FILE = "alarm_latency";
+    private static final int LATENCY_FILE_VERSION = 1;
 
-    private Map<Integer, CountdownTask> m_countdownTasks;
-    private Map<Integer, Alarm> m_alarms;
+    /* Alarms due this close to an alert are delivered with it */
+    private static final long DUE_TOLERANCE = 1000;
+
+    /* Alarms missed by more than this are delivered when the alarms are scheduled, without waiting for an alert */
+    private static final long OVERDUE_TOLERANCE = 2000;
+
+    /* How long dump() waits for the TickScheduler thread */
+    private static final long DUMP_TIMEOUT = 1000;
+
+    /* Owned by the TickScheduler thread, only touched from commands posted to it */
+    private final SparseArray<CountdownTask> m_countdownTasks = new SparseArray<CountdownTask>();
+    private final TickScheduler m_scheduler = TickScheduler.getInstance();
+    private AlarmQueue m_alarms;
+    private AlarmStore m_store;
+    private UsageHistory m_history;
+
+    /* Delay between Alarm.m_when and the delivery of the alert */
+    private final LatencyHistogram m_fireLateness = new LatencyHistogram();
+    /* Delay between the delivery of the alert and the notification being posted */
+    private final LatencyHistogram m_postLatency = new LatencyHistogram();
 
     private SharedPreferences m_preferences;
     private BroadcastReceiver m_receiver;
+    private boolean m_foreground = false;
 
     private static final boolean LOGD = false;
 
@@ -85,8 +119,17 @@ public class CountdownTimerService extends Service implements SharedPreferences.
         m_preferences = PreferenceManager.getDefaultSharedPreferences(this);
         m_preferences.registerOnSharedPreferenceChangeListener(this);
         loadAlarms();
+        loadLatencies();
+        applyMaxUpdates();
+        m_history = UsageHistory.open(this);
         scheduleAlarm();
-        startAllCountdownTasks();
+        updateOngoingNotification();
+        /* With the screen off the tasks start with the next ACTION_SCREEN_ON */
+        if (ApiCompat.isScreenOn(this)) {
+            startAllCountdownTasks();
+        }
+        /* Load the recent timers now, so the new timer dialog finds them in memory */
+        RecentTimers.getInstance(this);
 
         IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
@@ -98,6 +141,21 @@ public class CountdownTimerService extends Service implements SharedPreferences.
     public void onDestroy() {
         m_preferences.unregisterOnSharedPreferenceChangeListener(this);
         unregisterReceiver(m_receiver);
+        if (m_foreground) {
+            ApiCompat.stopForeground(this, ONGOING_NOTIFICATION_ID);
+            m_foreground = false;
+        }
+        m_store.close();
+        m_history.close();
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < m_countdownTasks.size(); i++) {
+                    m_countdownTasks.valueAt(i).stop();
+                }
+                m_countdownTasks.clear();
+            }
+        });
     }
 
     private int getIntentWidgetId(Intent intent) {
@@ -140,7 +198,7 @@ public class CountdownTimerService extends Service implements SharedPreferences.
                 return START_STICKY;
             }
 
-            cancelAlarmAndTask(widgetId);
+            removeWidget(widgetId);
         } else if (intent.getAction().equals(INTENT_RESET_ALARMS)) {
             deleteAllAlarms();
         } else if (intent.getAction().equals(NewTimerActivity.INTENT_NEW_TIMER)) {
@@ -150,6 +208,7 @@ public class CountdownTimerService extends Service implements SharedPreferences.
                 int duration = extras.getInt(NewTimerActivity.INTENT_DATA_DURATION, -1);
                 String description = extras.getString(NewTimerActivity.INTENT_DATA_DESCRIPTION);
                 boolean silent = extras.getBoolean(NewTimerActivity.INTENT_DATA_SILENT, false);
+                int tolerance = extras.getInt(NewTimerActivity.INTENT_DATA_TOLERANCE, 0);
                 if (widgetId == -1 || duration == -1) {
                     Log.w(TAG, "Received invalid intent!");
                     return START_STICKY;
@@ -158,23 +217,11 @@ public class CountdownTimerService extends Service implements SharedPreferences.
                 if (LOGD)
                     Log.d(TAG, "Received Intent with widgetId=" + widgetId + " and duration=" + duration);
 
-                if (m_countdownTasks.containsKey(widgetId)) {
-                    if (LOGD)
-                        Log.d(TAG, "Stopping old timer with ID " + widgetId);
-                    m_countdownTasks.get(widgetId).stop();
-                    m_countdownTasks.remove(widgetId);
-                }
-
-                RemoteViews views = CountdownTimerAppWidgetProvider.buildRemoteView(this, widgetId, description);
-
                 long when = SystemClock.elapsedRealtime() + duration * 1000;
+                startCountdownTask(widgetId, description, when);
 
-                CountdownTask countdownTask = new CountdownTask(this, views, widgetId, when);
-                m_countdownTasks.put(widgetId, countdownTask);
-                int interval = Integer.parseInt(m_preferences.getString(REFRESH_INTERVAL_KEY, "1"));
-                countdownTask.start(interval);
-
-                addAlarm(widgetId, when, description, silent);
+                addAlarm(widgetId, when, description, silent, tolerance);
+                m_history.recordStart(duration);
             }
         } else if (intent.getAction().equals(NewTimerActivity.INTENT_CANCEL_TIMER)) {
             Bundle extras = intent.getExtras();
@@ -185,6 +232,9 @@ public class CountdownTimerService extends Service implements SharedPreferences.
                     return START_STICKY;
                 }
 
+                if (m_alarms.contains(widgetId)) {
+                    m_history.recordCancel();
+                }
                 cancelAlarmAndTask(widgetId);
 
                 resetWidget(widgetId);
@@ -193,52 +243,12 @@ public class CountdownTimerService extends Service implements SharedPreferences.
             if (LOGD)
                 Log.d(TAG, "Received alarm intent: " + intent);
 
-            Bundle extras = intent.getExtras();
-            if (extras == null) {
-                Log.w(TAG, "Received invalid intent, Extras was null!");
-                return START_STICKY;
-            }
-
-            int widgetId = extras.getInt(INTENT_DATA_WIDGET_ID, -1);
-            if (widgetId == -1) {
-                Log.w(TAG, "Received invalid intent!");
-                return START_STICKY;
-            }
-
-            boolean isSilent = extras.getBoolean(INTENT_DATA_IS_SILENT, false);
-            String description = extras.getString(NewTimerActivity.INTENT_DATA_DESCRIPTION);
-
-            boolean vibrate = m_preferences.getBoolean(VIBRATE_KEY, true);
-            boolean insistent = m_preferences.getBoolean(INSISTENT_KEY, false);
-
-            String streamTypeStr = m_preferences.getString(VOLUME_SOURCE_KEY,
-                    Integer.toString(AudioManager.STREAM_ALARM));
-            int streamType;
-            try {
-                streamType = Integer.parseInt(streamTypeStr);
-            } catch (NumberFormatException e) {
-                streamType = AudioManager.STREAM_NOTIFICATION;
-                Log.w(TAG, e);
-            }
-
-            Uri sound;
-            if (isSilent) {
-                sound = Uri.EMPTY;
-            } else {
-                sound = Uri.parse(m_preferences.getString(RINGTONE_KEY,
-                        Settings.System.DEFAULT_NOTIFICATION_URI.toString()));
-            }
-            showNotification(widgetId, description, streamType, sound, vibrate, insistent);
-
-            removeAlarm(widgetId);
-
-            if (m_countdownTasks.containsKey(widgetId)) {
-                m_countdownTasks.get(widgetId).refresh();
-                m_countdownTasks.remove(widgetId);
-            }
+            deliverDueAlarms();
+            /* The process may be killed any time after the alert, make sure the delivery is on disk */
+            m_store.flush();
 
             /* No alarms left stop service */
-            if (m_alarms.size() == 0) {
+            if (m_alarms.isEmpty()) {
                 if (LOGD)
                     Log.d(TAG, "Stopping service!");
                 stopSelf();
@@ -255,6 +265,107 @@ public class CountdownTimerService extends Service implements SharedPreferences.
         return START_STICKY;
     }
 
+    /*
+     * Delivers every alarm that is due within DUE_TOLERANCE in one pass, so timers expiring together cost a single
+     * wakeup, one write of the alarms file and one reschedule. Only the first notification of a batch makes noise.
+     */
+    private void deliverDueAlarms() {
+        long now = SystemClock.elapsedRealtime();
+
+        boolean vibrate = m_preferences.getBoolean(VIBRATE_KEY, true);
+        boolean insistent = m_preferences.getBoolean(INSISTENT_KEY, false);
+
+        String streamTypeStr = m_preferences.getString(VOLUME_SOURCE_KEY, Integer.toString(AudioManager.STREAM_ALARM));
+        int streamType;
+        try {
+            streamType = Integer.parseInt(streamTypeStr);
+        } catch (NumberFormatException e) {
+            streamType = AudioManager.STREAM_NOTIFICATION;
+            Log.w(TAG, e);
+        }
+
+        Uri ringtone = Uri.parse(m_preferences.getString(RINGTONE_KEY,
+                Settings.System.DEFAULT_NOTIFICATION_URI.toString()));
+
+        int delivered = 0;
+        boolean soundPlayed = false;
+        while (!m_alarms.isEmpty() && m_alarms.peek().m_when <= now + DUE_TOLERANCE) {
+            int widgetId = m_alarms.peekId();
+            Alarm alarm = m_alarms.remove(widgetId);
+            m_store.remove(widgetId);
+
+            Uri sound = Uri.EMPTY;
+            if (!alarm.m_isSilent && !soundPlayed) {
+                sound = ringtone;
+                soundPlayed = true;
+            }
+            showNotification(widgetId, alarm.m_description, streamType, sound, vibrate && delivered == 0, insistent);
+            delivered++;
+
+            m_fireLateness.record(now - alarm.m_when);
+            m_history.recordExpiry(now - alarm.m_when);
+            m_postLatency.record(SystemClock.elapsedRealtime() - now);
+
+            finishCountdownTask(widgetId);
+        }
+
+        if (LOGD)
+            Log.d(TAG, "Delivered " + delivered + " alarms");
+
+        if (delivered > 0) {
+            saveAlarms();
+            saveLatencies();
+        }
+        scheduleAlarm();
+        updateOngoingNotification();
+    }
+
+    private void loadLatencies() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(openFileInput(LATENCY_FILE)));
+            int version = in.readInt();
+            if (version != LATENCY_FILE_VERSION) {
+                Log.w(TAG, "Unknown latency file version " + version);
+                return;
+            }
+            m_fireLateness.readFrom(in);
+            m_postLatency.readFrom(in);
+        } catch (FileNotFoundException e) {
+            /* Thats ok, no alarm fired yet */
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                }
+            }
+        }
+    }
+
+    private void saveLatencies() {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(openFileOutput(LATENCY_FILE, MODE_PRIVATE)));
+            out.writeInt(LATENCY_FILE_VERSION);
+            m_fireLateness.writeTo(out);
+            m_postLatency.writeTo(out);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                }
+            }
+        }
+    }
+
     public void showNotification(int id, String description, int streamType, Uri sound, boolean vibrate,
             boolean insistent) {
         String title = (description == null) ? "" : description + ": ";
@@ -276,11 +387,7 @@ public class CountdownTimerService extends Service implements SharedPreferences.
             n.flags |= Notification.FLAG_INSISTENT;
         }
 
-        Intent intent = new Intent(this, CountdownTimerService.class);
-        intent.setAction(INTENT_RESET_WIDGET);
-        intent.putExtra(INTENT_DATA_WIDGET_ID, id);
-        intent.setData(Uri.parse("widget://" + id));
-        PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent, 0);
+        PendingIntent pendingIntent = WidgetCache.getResetIntent(this, id);
 
         n.deleteIntent = pendingIntent;
 
@@ -291,91 +398,218 @@ public class CountdownTimerService extends Service implements SharedPreferences.
         manager.notify(id, n);
     }
 
-    private void resetWidget(int widgetId) {
-        AppWidgetManager.getInstance(this).updateAppWidget(widgetId,
-                CountdownTimerAppWidgetProvider.buildRemoteView(this, widgetId, null));
+    /*
+     * Shows the next alarm in an ongoing notification and keeps the service in the foreground while any alarm is
+     * set. Where the platform supports it the system counts the time down, so it stays current while the countdown
+     * tasks are stopped, otherwise the notification shows when the timer ends.
+     */
+    private void updateOngoingNotification() {
+        if (m_alarms.isEmpty() || !m_preferences.getBoolean(ONGOING_KEY, false)) {
+            if (m_foreground) {
+                ApiCompat.stopForeground(this, ONGOING_NOTIFICATION_ID);
+                m_foreground = false;
+            }
+            return;
+        }
+
+        int widgetId = m_alarms.peekId();
+        Alarm next = m_alarms.peek();
+        long wallWhen = System.currentTimeMillis() + (next.m_when - SystemClock.elapsedRealtime());
+
+        RemoteViews views = new RemoteViews(getPackageName(), R.layout.countdown_notification);
+        views.setTextViewText(R.id.notification_title,
+                (next.m_description == null) ? getString(R.string.timer_running) : next.m_description);
+        if (ApiCompat.hasChronometerCountDown()) {
+            views.setChronometer(R.id.notification_chronometer, next.m_when, null, true);
+            ApiCompat.setChronometerCountDown(views, R.id.notification_chronometer, true);
+            views.setViewVisibility(R.id.notification_chronometer, View.VISIBLE);
+            views.setViewVisibility(R.id.notification_text, View.GONE);
+        } else {
+            String end = DateFormat.getTimeFormat(this).format(new Date(wallWhen));
+            views.setTextViewText(R.id.notification_text, getString(R.string.timer_ends_at, end));
+            views.setViewVisibility(R.id.notification_chronometer, View.GONE);
+            views.setViewVisibility(R.id.notification_text, View.VISIBLE);
+        }
+        if (m_alarms.size() > 1) {
+            views.setTextViewText(R.id.notification_count, getString(R.string.next_of_timers, m_alarms.size()));
+            views.setViewVisibility(R.id.notification_count, View.VISIBLE);
+        } else {
+            views.setViewVisibility(R.id.notification_count, View.GONE);
+        }
+
+        Notification n = new Notification(R.drawable.stat_notify_alarm, null, wallWhen);
+        n.contentView = views;
+        n.contentIntent = WidgetCache.getClickIntent(this, widgetId);
+        n.flags = Notification.FLAG_ONGOING_EVENT | Notification.FLAG_NO_CLEAR;
+
+        /* Posting again replaces the notification */
+        ApiCompat.startForeground(this, ONGOING_NOTIFICATION_ID, n);
+        m_foreground = true;
+    }
+
+    private void resetWidget(final int widgetId) {
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                UpdateDispatcher.getInstance().submit(CountdownTimerService.this, widgetId,
+                        WidgetCache.getIdleView(CountdownTimerService.this, widgetId), false, 0);
+            }
+        });
+    }
+
+    private void applyMaxUpdates() {
+        final int maxUpdates = Integer.parseInt(m_preferences.getString(MAX_UPDATES_KEY, "10"));
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                UpdateDispatcher.getInstance().setMaxUpdatesPerSecond(maxUpdates);
+            }
+        });
+    }
+
+    private boolean isHostTicking() {
+        return m_preferences.getBoolean(HOST_TICKING_KEY, false) && ApiCompat.hasChronometerCountDown();
+    }
+
+    /* Starts a task counting down to when, replacing the task the widget had before */
+    private void startCountdownTask(final int widgetId, final String description, final long when) {
+        final int interval = Integer.parseInt(m_preferences.getString(REFRESH_INTERVAL_KEY, "1"));
+        final boolean hostTicking = isHostTicking();
+        final boolean sharedTick = m_preferences.getBoolean(SHARED_TICK_KEY, false);
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                CountdownTask oldTask = m_countdownTasks.get(widgetId);
+                if (oldTask != null) {
+                    if (LOGD)
+                        Log.d(TAG, "Stopping old timer with ID " + widgetId);
+                    oldTask.stop();
+                }
+                CountdownTask task = new CountdownTask(CountdownTimerService.this, widgetId, description, when);
+                m_countdownTasks.put(widgetId, task);
+                task.setHostTicking(hostTicking);
+                task.setSharedTick(sharedTick);
+                task.start(interval);
+            }
+        });
+    }
+
+    /* Draws the final state of an expired task and forgets it */
+    private void finishCountdownTask(final int widgetId) {
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                CountdownTask task = m_countdownTasks.get(widgetId);
+                if (task != null) {
+                    m_countdownTasks.delete(widgetId);
+                    task.refresh();
+                }
+            }
+        });
     }
 
     private void startAllCountdownTasks() {
-        int interval = Integer.parseInt(m_preferences.getString(REFRESH_INTERVAL_KEY, "1"));
-        for (CountdownTask task : m_countdownTasks.values()) {
-            task.start(interval);
-        }
+        final int interval = Integer.parseInt(m_preferences.getString(REFRESH_INTERVAL_KEY, "1"));
+        final boolean hostTicking = isHostTicking();
+        final boolean sharedTick = m_preferences.getBoolean(SHARED_TICK_KEY, false);
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < m_countdownTasks.size(); i++) {
+                    CountdownTask task = m_countdownTasks.valueAt(i);
+                    task.setHostTicking(hostTicking);
+                    task.setSharedTick(sharedTick);
+                    task.start(interval);
+                }
+            }
+        });
     }
 
     private void stopAllCountdownTasks() {
-        for (CountdownTask task : m_countdownTasks.values()) {
-            task.stop();
-        }
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < m_countdownTasks.size(); i++) {
+                    m_countdownTasks.valueAt(i).stop();
+                }
+            }
+        });
     }
 
-    private void cancelAlarmAndTask(int widgetId) {
-        if (m_countdownTasks.containsKey(widgetId)) {
-            m_countdownTasks.get(widgetId).reset();
-            m_countdownTasks.remove(widgetId);
-        }
+    private void cancelAlarmAndTask(final int widgetId) {
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                CountdownTask task = m_countdownTasks.get(widgetId);
+                if (task != null) {
+                    task.reset();
+                    m_countdownTasks.delete(widgetId);
+                }
+            }
+        });
         removeAlarm(widgetId);
     }
 
-    private void loadAlarms() {
-        ObjectInputStream ois = null;
-        m_alarms = new HashMap<Integer, Alarm>();
-        m_countdownTasks = new HashMap<Integer, CountdownTask>();
-        try {
-            ois = new ObjectInputStream(openFileInput(ALARMS_FILE));
-            while (true) {
-                try {
-                    int widgetId = ois.readInt();
-                    Object object = ois.readObject();
-                    if (object == null) {
-                        break;
-                    }
-                    if (object instanceof Alarm) {
-                        Alarm alarm = (Alarm) object;
-                        m_alarms.put(widgetId, alarm);
-
-                        RemoteViews views = CountdownTimerAppWidgetProvider.buildRemoteView(this, widgetId,
-                                alarm.m_description);
-                        CountdownTask task = new CountdownTask(this, views, widgetId, alarm.m_when);
-                        m_countdownTasks.put(widgetId, task);
-                    } else {
-                        Log.w(TAG, "Object was not of class Alarm!");
-                    }
-                } catch (ClassNotFoundException e) {
-                    /* This should not happen, if it does just retry */
-                    Log.w(TAG, e);
+    /*
+     * The widget is gone: stops its task without drawing the idle view, drops anything still waiting to be sent and
+     * only then forgets its cached views and intents, nothing builds them again afterwards.
+     */
+    private void removeWidget(final int widgetId) {
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                CountdownTask task = m_countdownTasks.get(widgetId);
+                if (task != null) {
+                    task.stop();
+                    m_countdownTasks.delete(widgetId);
                 }
+                UpdateDispatcher.getInstance().discard(widgetId);
+                WidgetCache.invalidate(widgetId);
             }
-        } catch (EOFException e) {
-            /* That's ok, we probably read all the alarms */
-        } catch (FileNotFoundException e) {
-            /* Thats ok, we didn't save any alarms */
-        } catch (IOException e) {
-            Log.w(TAG, e);
-        } finally {
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException e) {
-                    Log.w(TAG, e);
+        });
+        removeAlarm(widgetId);
+    }
+
+    private void loadAlarms() {
+        m_alarms = new AlarmQueue();
+        m_store = openAlarmStore();
+        m_store.load(m_alarms);
+
+        /* Only the deadlines, the views are built when a task first draws */
+        final int n = m_alarms.size();
+        final int[] widgetIds = new int[n];
+        final Alarm[] alarms = new Alarm[n];
+        for (int i = 0; i < n; i++) {
+            widgetIds[i] = m_alarms.idAt(i);
+            alarms[i] = m_alarms.alarmAt(i);
+        }
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < n; i++) {
+                    m_countdownTasks.put(widgetIds[i], new CountdownTask(CountdownTimerService.this, widgetIds[i],
+                            alarms[i].m_description, alarms[i].m_when));
                 }
             }
-        }
+        });
     }
 
-    private void saveAlarms() {
-        try {
-            ObjectOutputStream oos = new ObjectOutputStream(openFileOutput(ALARMS_FILE, MODE_PRIVATE));
-            for (Map.Entry<Integer, Alarm> entry : m_alarms.entrySet()) {
-                oos.writeInt(entry.getKey());
-                oos.writeObject(entry.getValue());
+    /* The store selected in the settings, its load() takes over the alarms of the other one */
+    private AlarmStore openAlarmStore() {
+        if (m_preferences.getBoolean(MAPPED_ALARMS_KEY, false)) {
+            AlarmTable table = AlarmTable.open(this, ALARMS_FILE);
+            if (table != null) {
+                return table;
             }
-        } catch (FileNotFoundException e) {
-            Log.w(TAG, e);
-        } catch (IOException e) {
-            /* Well just tough luck */
-            Log.w(TAG, e);
+            Log.w(TAG, "Could not map alarm table, falling back to journal");
         }
+        AlarmTable.moveToJournal(this, ALARMS_FILE);
+        return new AlarmJournal(this, ALARMS_FILE);
+    }
+
+    /* Persists all mutations journaled since the last call */
+    private void saveAlarms() {
+        m_store.commit(m_alarms);
     }
 
     private void removeAlarm(int widgetId) {
@@ -385,39 +619,38 @@ public class CountdownTimerService extends Service implements SharedPreferences.
         if (m_alarms.remove(widgetId) == null) {
             return;
         }
+        m_store.remove(widgetId);
         saveAlarms();
         scheduleAlarm();
+        updateOngoingNotification();
     }
 
-    private void addAlarm(int widgetId, long when, String description, boolean isSilent) {
-        m_alarms.put(widgetId, new Alarm(when, description, isSilent));
+    private void addAlarm(int widgetId, long when, String description, boolean isSilent, int tolerance) {
+        Alarm alarm = new Alarm(when, description, isSilent, tolerance);
+        m_alarms.put(widgetId, alarm);
+        m_store.put(widgetId, alarm);
         saveAlarms();
         scheduleAlarm();
+        updateOngoingNotification();
     }
 
     private void deleteAllAlarms() {
-        m_alarms = new HashMap<Integer, Alarm>();
+        m_alarms.clear();
+        m_store.clear();
         saveAlarms();
         scheduleAlarm();
+        updateOngoingNotification();
     }
 
     private void scheduleAlarm() {
         long now = SystemClock.elapsedRealtime();
 
         if (LOGD)
-            Log.d(TAG, "Scheduling Alarms: " + m_alarms.values().toString());
-
-        Map.Entry<Integer, Alarm> nextAlarm = smallestValue(m_alarms);
-
-        while (nextAlarm != null && nextAlarm.getValue().m_when < (now - 2000)) {
-            m_alarms.remove(nextAlarm.getKey());
-            Log.w(TAG, "Removing too old alarm!");
-            nextAlarm = smallestValue(m_alarms);
-        }
+            Log.d(TAG, "Scheduling Alarms: " + m_alarms);
 
         AlarmManager manager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
 
-        if (nextAlarm == null) {
+        if (m_alarms.isEmpty()) {
             Intent intent = new Intent(INTENT_ALARM_ALERT);
             intent.setComponent(new ComponentName(this, CountdownTimerService.class));
             PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
@@ -425,34 +658,77 @@ public class CountdownTimerService extends Service implements SharedPreferences.
             return;
         }
 
-        long when = nextAlarm.getValue().m_when;
+        Alarm nextAlarm = m_alarms.peek();
+        long when = nextAlarm.m_when;
+
+        /*
+         * A relaxed alarm may fire late, but the window must not delay any other alarm past its deadline. Every
+         * later alarm is due no earlier than the second earliest one.
+         */
+        long windowEnd = when + nextAlarm.m_tolerance * 1000L;
+        Alarm secondAlarm = m_alarms.peekSecond();
+        if (secondAlarm != null && secondAlarm.m_when < windowEnd) {
+            windowEnd = secondAlarm.m_when;
+        }
+
+        /*
+         * The queue is the only record of an alarm. An alert that came late, for example because the process was
+         * killed, finds its alarms here on the cold start, so they are delivered instead of dropped. A relaxed alarm
+         * is only overdue once its window has passed. Delivering schedules again.
+         */
+        if (windowEnd + OVERDUE_TOLERANCE < now) {
+            Log.w(TAG, "Delivering overdue alarms!");
+            deliverDueAlarms();
+            return;
+        }
 
         Intent intent = new Intent(INTENT_ALARM_ALERT);
         intent.setComponent(new ComponentName(this, CountdownTimerService.class));
-        intent.putExtra(INTENT_DATA_WIDGET_ID, nextAlarm.getKey());
-        intent.putExtra(NewTimerActivity.INTENT_DATA_DESCRIPTION, nextAlarm.getValue().m_description);
-        intent.putExtra(INTENT_DATA_IS_SILENT, nextAlarm.getValue().m_isSilent);
         PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
 
-        Log.i(TAG, "Setting alarm in " + (when - now) / 1000 + " seconds!");
-        manager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, when, pendingIntent);
-    }
-
-    private static <K, V> Map.Entry<K, V> smallestValue(Map<K, V> map) {
-
-        if (map.size() == 0) {
-            return null;
+        if (windowEnd > when && ApiCompat.hasAlarmWindows()) {
+            Log.i(TAG, "Setting alarm in " + (when - now) / 1000 + " seconds with a window of "
+                    + (windowEnd - when) / 1000 + " seconds!");
+            ApiCompat.setWindow(manager, AlarmManager.ELAPSED_REALTIME_WAKEUP, when, windowEnd - when, pendingIntent);
+        } else {
+            Log.i(TAG, "Setting alarm in " + (when - now) / 1000 + " seconds!");
+            manager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, when, pendingIntent);
         }
+    }
 
-        List<Map.Entry<K, V>> list = new LinkedList<Map.Entry<K, V>>(map.entrySet());
-        Collections.sort(list, new Comparator<Map.Entry<K, V>>() {
-            @SuppressWarnings("unchecked")
-            public int compare(Map.Entry<K, V> o1, Map.Entry<K, V> o2) {
-                return ((Comparable<V>) o1.getValue()).compareTo(o2.getValue());
+    /* Diagnostics, available through 'adb shell dumpsys activity service CountdownTimerService' */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        final StringWriter tasks = new StringWriter();
+        final CountDownLatch done = new CountDownLatch(1);
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                PrintWriter out = new PrintWriter(tasks);
+                out.println("Countdown tasks: " + m_countdownTasks.size());
+                for (int i = 0; i < m_countdownTasks.size(); i++) {
+                    CountdownTask task = m_countdownTasks.valueAt(i);
+                    out.println("  Widget " + m_countdownTasks.keyAt(i) + ": full update "
+                            + task.getFullPayloadSize() + " bytes, tick update " + task.getTickPayloadSize()
+                            + " bytes");
+                }
+                UpdateDispatcher.getInstance().dump(out);
+                out.flush();
+                done.countDown();
             }
         });
-
-        return list.get(0);
+        try {
+            if (done.await(DUMP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                writer.print(tasks);
+            } else {
+                writer.println("Countdown tasks: loop thread not responding");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        m_fireLateness.dump(writer, "Alarm fire lateness");
+        m_postLatency.dump(writer, "Notification post latency");
+        m_history.dump(writer, 20);
     }
 
     @Override
@@ -479,9 +755,18 @@ public class CountdownTimerService extends Service implements SharedPreferences.
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (key.equals(REFRESH_INTERVAL_KEY)) {
+        if (key.equals(REFRESH_INTERVAL_KEY) || key.equals(HOST_TICKING_KEY) || key.equals(SHARED_TICK_KEY)) {
             stopAllCountdownTasks();
             startAllCountdownTasks();
+        } else if (key.equals(MAX_UPDATES_KEY)) {
+            applyMaxUpdates();
+        } else if (key.equals(ONGOING_KEY)) {
+            updateOngoingNotification();
+        } else if (key.equals(MAPPED_ALARMS_KEY)) {
+            /* Every change is committed, the new store takes the alarms over from the files of the old one */
+            m_store.close();
+            m_store = openAlarmStore();
+            m_store.load(new AlarmQueue());
         }
     }
 
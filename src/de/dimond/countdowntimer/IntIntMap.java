@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+/**
+ * Map from int to int without boxing, open addressing with linear probing. Removal shifts the following entries
+ * back instead of leaving tombstones, so lookups never get slower over time.
+ */
+class IntIntMap {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] m_keys = new int[INITIAL_CAPACITY];
+    private int[] m_values = new int[INITIAL_CAPACITY];
+    private boolean[] m_used = new boolean[INITIAL_CAPACITY];
+    private int m_size = 0;
+
+    public int size() {
+        return m_size;
+    }
+
+    /* The value of key or missing if there is none */
+    public int get(int key, int missing) {
+        int slot = find(key);
+        return m_used[slot] ? m_values[slot] : missing;
+    }
+
+    public boolean containsKey(int key) {
+        return m_used[find(key)];
+    }
+
+    public void put(int key, int value) {
+        int slot = find(key);
+        if (!m_used[slot]) {
+            if ((m_size + 1) * 4 > m_keys.length * 3) {
+                resize(m_keys.length * 2);
+                slot = find(key);
+            }
+            m_used[slot] = true;
+            m_keys[slot] = key;
+            m_size++;
+        }
+        m_values[slot] = value;
+    }
+
+    /* Returns the removed value or missing if there was none */
+    public int remove(int key, int missing) {
+        int slot = find(key);
+        if (!m_used[slot]) {
+            return missing;
+        }
+        int value = m_values[slot];
+        m_size--;
+
+        /* Move back every following entry that would not be found anymore behind the gap */
+        int mask = m_keys.length - 1;
+        int gap = slot;
+        int i = (slot + 1) & mask;
+        while (m_used[i]) {
+            int home = hash(m_keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                m_keys[gap] = m_keys[i];
+                m_values[gap] = m_values[i];
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+        m_used[gap] = false;
+        return value;
+    }
+
+    public void clear() {
+        for (int i = 0; i < m_used.length; i++) {
+            m_used[i] = false;
+        }
+        m_size = 0;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /* Slot of key, or the free slot where it would be inserted */
+    private int find(int key) {
+        int mask = m_keys.length - 1;
+        int slot = hash(key) & mask;
+        while (m_used[slot] && m_keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        int[] keys = m_keys;
+        int[] values = m_values;
+        boolean[] used = m_used;
+        m_keys = new int[capacity];
+        m_values = new int[capacity];
+        m_used = new boolean[capacity];
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                int slot = find(keys[i]);
+                m_used[slot] = true;
+                m_keys[slot] = keys[i];
+                m_values[slot] = values[i];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Fixed size histogram of latencies in milliseconds. Bucket 0 holds values below 1 ms, bucket i values in
+ * [2^(i-1), 2^i) ms and the last bucket everything above.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 20;
+
+    private final long[] m_counts = new long[BUCKETS];
+    private long m_count = 0;
+    private long m_sum = 0;
+    private long m_max = 0;
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        int bucket = 0;
+        while (bucket < BUCKETS - 1 && millis >= (1L << bucket)) {
+            bucket++;
+        }
+        m_counts[bucket]++;
+        m_count++;
+        m_sum += millis;
+        if (millis > m_max) {
+            m_max = millis;
+        }
+    }
+
+    public long getCount() {
+        return m_count;
+    }
+
+    /* Upper bound of the bucket holding the given percentile, -1 if nothing was recorded */
+    public long percentile(int percent) {
+        if (m_count == 0) {
+            return -1;
+        }
+        long rank = (m_count * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += m_counts[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return m_max;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(BUCKETS);
+        for (int i = 0; i < BUCKETS; i++) {
+            out.writeLong(m_counts[i]);
+        }
+        out.writeLong(m_count);
+        out.writeLong(m_sum);
+        out.writeLong(m_max);
+    }
+
+    public void readFrom(DataInputStream in) throws IOException {
+        int buckets = in.readInt();
+        if (buckets != BUCKETS) {
+            throw new IOException("Unexpected number of buckets: " + buckets);
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            m_counts[i] = in.readLong();
+        }
+        m_count = in.readLong();
+        m_sum = in.readLong();
+        m_max = in.readLong();
+    }
+
+    public void dump(PrintWriter writer, String name) {
+        writer.print(name + ": count=" + m_count);
+        if (m_count == 0) {
+            writer.println();
+            return;
+        }
+        writer.println(", mean=" + (m_sum / m_count) + "ms, p50<" + percentile(50) + "ms, p90<" + percentile(90)
+                + "ms, p99<" + percentile(99) + "ms, max=" + m_max + "ms");
+        long lower = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long upper = 1L << i;
+            if (m_counts[i] > 0) {
+                if (i == BUCKETS - 1) {
+                    writer.println("  >=" + lower + "ms: " + m_counts[i]);
+                } else {
+                    writer.println("  " + lower + "-" + upper + "ms: " + m_counts[i]);
+                }
+            }
+            lower = upper;
+        }
+    }
+
+}
@@ -16,11 +16,6 @@
 
 package de.dimond.countdowntimer;
 
-import java.io.EOFException;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -42,24 +37,27 @@ import android.widget.Spinner;
 
 import com.android.example.NumberPicker;
 
-public class NewTimerActivity extends Activity implements OnClickListener, OnItemSelectedListener {
+public class NewTimerActivity extends Activity implements OnClickListener, OnItemSelectedListener,
+        RecentTimers.Listener {
 
     public static final String INTENT_NEW_TIMER = "de.dimond.countdowntimer.intent.ACTION_NEW_TIMER";
     public static final String INTENT_CANCEL_TIMER = "de.dimond.countdowntimer.intent.ACTION_CANCEL_TIMER";
     public static final String INTENT_DATA_DURATION = "DURATION";
     public static final String INTENT_DATA_SILENT = "SILENT";
     public static final String INTENT_DATA_DESCRIPTION = "DESCRIPTION";
+    public static final String INTENT_DATA_TOLERANCE = "TOLERANCE";
 
-    private static final String RECENT_TIMERS_FILE = "recent_timers";
-
-    private static final Timer DEFAULT_TIMER = new Timer(0, 1, 0, null, false);
-    private static final int MAX_RECENT_TIMERS = 7;
+    /* Seconds a relaxed timer may ring late */
+    private static final int RELAXED_TOLERANCE = 30;
 
     private static final String TAG = "NewTimerActivity";
     private static final boolean LOGD = false;
 
     private int m_widgetId;
     private List<Timer> m_recentTimers;
+    private TimerSpinnerAdapter m_adapter;
+    /* The timer as last set by setTimer(), anything else was entered by the user */
+    private Timer m_shownTimer;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -75,11 +73,13 @@ public class NewTimerActivity extends Activity implements OnClickListener, OnIte
 
         Spinner recentTimers = (Spinner) findViewById(R.id.recent_timers);
 
-        m_recentTimers = readState();
+        /* Shows the default timer until the recent timers are loaded */
+        m_recentTimers = new ArrayList<Timer>();
+        m_recentTimers.add(RecentTimers.DEFAULT_TIMER);
 
-        TimerSpinnerAdapter adapter = new TimerSpinnerAdapter(this, m_recentTimers);
+        m_adapter = new TimerSpinnerAdapter(this, m_recentTimers);
 
-        recentTimers.setAdapter(adapter);
+        recentTimers.setAdapter(m_adapter);
         recentTimers.setOnItemSelectedListener(this);
 
         pickerHours.setRange(0, 23);
@@ -96,8 +96,8 @@ public class NewTimerActivity extends Activity implements OnClickListener, OnIte
         Button cancelButton = (Button) findViewById(R.id.cancel_button);
         cancelButton.setOnClickListener(this);
 
-        Timer lastTimer = m_recentTimers.get(0);
-        setTimer(lastTimer);
+        setTimer(RecentTimers.DEFAULT_TIMER);
+        RecentTimers.getInstance(this).load(this);
 
         Intent intent = getIntent();
         m_widgetId = intent.getIntExtra(CountdownTimerService.INTENT_DATA_WIDGET_ID, -1);
@@ -108,6 +108,23 @@ public class NewTimerActivity extends Activity implements OnClickListener, OnIte
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        RecentTimers.getInstance(this).removeListener(this);
+    }
+
+    @Override
+    public void onRecentTimersLoaded(List<Timer> timers) {
+        m_recentTimers.clear();
+        m_recentTimers.addAll(timers);
+        m_adapter.notifyDataSetChanged();
+        /* The user may have started entering a timer while they were loading */
+        if (sameForm(readTimer(), m_shownTimer)) {
+            setTimer(m_recentTimers.get(0));
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu, menu);
@@ -146,6 +163,37 @@ public class NewTimerActivity extends Activity implements OnClickListener, OnIte
 
         CheckBox checkBox = (CheckBox) findViewById(R.id.silent);
         checkBox.setChecked(timer.isSilent());
+
+        CheckBox relaxed = (CheckBox) findViewById(R.id.relaxed);
+        relaxed.setChecked(timer.getTolerance() > 0);
+
+        m_shownTimer = readTimer();
+    }
+
+    /* Timer.equals() ignores the check boxes, the recent timers are told apart by time and description only */
+    private static boolean sameForm(Timer a, Timer b) {
+        return a.equals(b) && a.isSilent() == b.isSilent() && a.getTolerance() == b.getTolerance();
+    }
+
+    /* The timer as currently entered */
+    private Timer readTimer() {
+        NumberPicker pickerHours = (NumberPicker) findViewById(R.id.hours);
+        NumberPicker pickerMinutes = (NumberPicker) findViewById(R.id.minutes);
+        NumberPicker pickerSeconds = (NumberPicker) findViewById(R.id.seconds);
+
+        EditText description = (EditText) findViewById(R.id.description);
+
+        CheckBox checkBox = (CheckBox) findViewById(R.id.silent);
+        CheckBox relaxed = (CheckBox) findViewById(R.id.relaxed);
+
+        String descStr = description.getText().toString();
+
+        if (descStr.equals("")) {
+            descStr = null;
+        }
+
+        return new Timer(pickerHours.getCurrent(), pickerMinutes.getCurrent(), pickerSeconds.getCurrent(), descStr,
+                checkBox.isChecked(), relaxed.isChecked() ? RELAXED_TOLERANCE : 0);
     }
 
     @Override
@@ -162,32 +210,16 @@ public class NewTimerActivity extends Activity implements OnClickListener, OnIte
     @Override
     public void onClick(View v) {
         if (v.equals(findViewById(R.id.start_button))) {
-            NumberPicker pickerHours = (NumberPicker) findViewById(R.id.hours);
-            NumberPicker pickerMinutes = (NumberPicker) findViewById(R.id.minutes);
-            NumberPicker pickerSeconds = (NumberPicker) findViewById(R.id.seconds);
-
-            EditText description = (EditText) findViewById(R.id.description);
-
-            CheckBox checkBox = (CheckBox) findViewById(R.id.silent);
+            Timer timer = readTimer();
 
-            int hours = pickerHours.getCurrent();
-            int minutes = pickerMinutes.getCurrent();
-            int seconds = pickerSeconds.getCurrent();
-
-            String descStr = description.getText().toString();
-
-            if (descStr.equals("")) {
-                descStr = null;
-            }
-
-            boolean silent = checkBox.isChecked();
-
-            saveState(new Timer(hours, minutes, seconds, descStr, silent));
+            RecentTimers.getInstance(this).add(timer);
 
             Intent intent = new Intent(INTENT_NEW_TIMER);
-            intent.putExtra(INTENT_DATA_DURATION, hours * 3600 + minutes * 60 + seconds);
-            intent.putExtra(INTENT_DATA_SILENT, silent);
-            intent.putExtra(INTENT_DATA_DESCRIPTION, descStr);
+            intent.putExtra(INTENT_DATA_DURATION, timer.getHours() * 3600 + timer.getMinutes() * 60
+                    + timer.getSeconds());
+            intent.putExtra(INTENT_DATA_SILENT, timer.isSilent());
+            intent.putExtra(INTENT_DATA_TOLERANCE, timer.getTolerance());
+            intent.putExtra(INTENT_DATA_DESCRIPTION, timer.getDescription());
             intent.putExtra(CountdownTimerService.INTENT_DATA_WIDGET_ID, m_widgetId);
 
             startService(intent);
@@ -203,70 +235,4 @@ public class NewTimerActivity extends Activity implements OnClickListener, OnIte
         }
     }
 
-    private List<Timer> readState() {
-        List<Timer> recentList = new ArrayList<Timer>(MAX_RECENT_TIMERS + 1);
-        ObjectInputStream ois = null;
-        try {
-            ois = new ObjectInputStream(openFileInput(RECENT_TIMERS_FILE));
-            while (true) {
-                try {
-                    Object object = ois.readObject();
-                    if (object == null) {
-                        break;
-                    }
-                    if (object instanceof Timer) {
-                        recentList.add((Timer) object);
-                    } else {
-                        Log.w(TAG, "Object was not of class Timer!");
-                    }
-                } catch (ClassNotFoundException e) {
-                    /* This should not happen, if it does just silently retry */
-                    Log.w(TAG, e);
-                }
-            }
-        } catch (FileNotFoundException e) {
-            /* Thats ok, just use default timer */
-        } catch (EOFException e) {
-            /* Thats ok too, this is normal */
-        } catch (IOException e) {
-            /* Use default timer, if recentList is empty */
-            Log.w(TAG, e);
-        } finally {
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException e) {
-                    Log.w(TAG, e);
-                }
-            }
-        }
-
-        /* If our list happens to be empty, just add the default list */
-        if (recentList.size() == 0) {
-            recentList.add(DEFAULT_TIMER);
-        }
-
-        return recentList;
-    }
-
-    private void saveState(Timer newTimer) {
-        m_recentTimers.remove(newTimer);
-        m_recentTimers.add(0, newTimer);
-        while (m_recentTimers.size() > MAX_RECENT_TIMERS) {
-            m_recentTimers.remove(MAX_RECENT_TIMERS);
-        }
-
-        try {
-            ObjectOutputStream oos = new ObjectOutputStream(openFileOutput(RECENT_TIMERS_FILE, MODE_PRIVATE));
-            for (Timer t : m_recentTimers) {
-                oos.writeObject(t);
-            }
-        } catch (FileNotFoundException e) {
-            Log.w(TAG, e);
-        } catch (IOException e) {
-            /* Well just tough luck */
-            Log.w(TAG, e);
-        }
-    }
-
 }
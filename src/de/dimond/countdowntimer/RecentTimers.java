@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Process wide cache of the recently used timers. The file is read once on a background thread, afterwards the
+ * timers are served from memory and changes are written behind on the same thread. All methods must be called on the
+ * main thread.
+ *
+ * The file is framed like the alarms file, see AlarmFile. A timer is the hours, minutes, seconds, flags, tolerance and
+ * the description as length prefixed UTF-8 (length -1 for no description). Files written with Java serialization by
+ * earlier versions are migrated when read.
+ */
+public class RecentTimers {
+
+    public interface Listener {
+        public void onRecentTimersLoaded(List<Timer> timers);
+    }
+
+    private static final String TAG = "RecentTimers";
+    private static final boolean LOGD = false;
+
+    private static final String RECENT_TIMERS_FILE = "recent_timers";
+
+    private static final int MAGIC = 0x43545254;
+    private static final int VERSION = 1;
+
+    private static final int FLAG_SILENT = 1;
+
+    static final Timer DEFAULT_TIMER = new Timer(0, 1, 0, null, false, 0);
+    private static final int MAX_RECENT_TIMERS = 7;
+
+    private static RecentTimers s_instance;
+
+    private final Context m_context;
+    private final Handler m_mainHandler;
+    private final Handler m_ioHandler;
+
+    /* null until loaded */
+    private List<Timer> m_timers;
+    private final List<Listener> m_listeners = new ArrayList<Listener>();
+    /* Timers added before the file was read */
+    private final List<Timer> m_added = new ArrayList<Timer>();
+
+    /* Latest list waiting to be written, guarded by this */
+    private List<Timer> m_unwritten;
+
+    private final Runnable m_writer = new Runnable() {
+        @Override
+        public void run() {
+            List<Timer> timers;
+            synchronized (RecentTimers.this) {
+                timers = m_unwritten;
+                m_unwritten = null;
+            }
+            if (timers != null) {
+                write(timers);
+            }
+        }
+    };
+
+    /* Starts loading the timers on first use, so later calls find them in memory */
+    public static RecentTimers getInstance(Context context) {
+        if (s_instance == null) {
+            s_instance = new RecentTimers(context.getApplicationContext());
+        }
+        return s_instance;
+    }
+
+    private RecentTimers(Context context) {
+        m_context = context;
+        m_mainHandler = new Handler(Looper.getMainLooper());
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        m_ioHandler = new Handler(thread.getLooper());
+        m_ioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final List<Timer> timers = read();
+                m_mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLoaded(timers);
+                    }
+                });
+            }
+        });
+    }
+
+    /* Passes the timers to the listener, right away if they are loaded already. The list must not be modified. */
+    public void load(Listener listener) {
+        if (m_timers != null) {
+            listener.onRecentTimersLoaded(m_timers);
+        } else {
+            m_listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        m_listeners.remove(listener);
+    }
+
+    /* Moves the timer to the front of the list and writes the list in the background */
+    public void add(Timer timer) {
+        if (m_timers == null) {
+            m_added.add(timer);
+            return;
+        }
+        m_timers.remove(timer);
+        m_timers.add(0, timer);
+        while (m_timers.size() > MAX_RECENT_TIMERS) {
+            m_timers.remove(MAX_RECENT_TIMERS);
+        }
+
+        synchronized (this) {
+            boolean posted = m_unwritten != null;
+            m_unwritten = new ArrayList<Timer>(m_timers);
+            if (!posted) {
+                m_ioHandler.post(m_writer);
+            }
+        }
+    }
+
+    private void onLoaded(List<Timer> timers) {
+        if (LOGD)
+            Log.d(TAG, "Loaded " + timers.size() + " recent timers");
+        m_timers = timers;
+        for (Timer timer : m_added) {
+            add(timer);
+        }
+        m_added.clear();
+
+        for (Listener listener : m_listeners) {
+            listener.onRecentTimersLoaded(m_timers);
+        }
+        m_listeners.clear();
+    }
+
+    private List<Timer> read() {
+        List<Timer> timers = new ArrayList<Timer>(MAX_RECENT_TIMERS + 1);
+        try {
+            byte[] data = AlarmFile.readFully(m_context.getFileStreamPath(RECENT_TIMERS_FILE));
+            if (AlarmFile.isSerialized(data)) {
+                Log.i(TAG, "Migrating serialized recent timers file");
+                readLegacy(data, timers);
+                write(timers);
+            } else if (data.length > 0) {
+                readTimers(data, timers);
+            }
+        } catch (FileNotFoundException e) {
+            /* Thats ok, just use default timer */
+        } catch (IOException e) {
+            /* Use default timer, if the list is empty */
+            Log.w(TAG, e);
+        }
+
+        /* If our list happens to be empty, just add the default timer */
+        if (timers.size() == 0) {
+            timers.add(DEFAULT_TIMER);
+        }
+        return timers;
+    }
+
+    private static void readTimers(byte[] data, List<Timer> timers) throws IOException {
+        DataInputStream in = AlarmFile.openRecords(data, MAGIC, VERSION);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int hours = in.readInt();
+            int minutes = in.readInt();
+            int seconds = in.readInt();
+            int flags = in.readInt();
+            int tolerance = in.readInt();
+            int length = in.readInt();
+            String description = null;
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                description = new String(bytes, "UTF-8");
+            }
+            timers.add(new Timer(hours, minutes, seconds, description, (flags & FLAG_SILENT) != 0, tolerance));
+        }
+    }
+
+    private static void readLegacy(byte[] data, List<Timer> timers) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            while (true) {
+                Object object = ois.readObject();
+                if (object == null) {
+                    break;
+                }
+                if (object instanceof Timer) {
+                    timers.add((Timer) object);
+                } else {
+                    Log.w(TAG, "Object was not of class Timer!");
+                }
+            }
+        } catch (EOFException e) {
+            /* Thats ok, this is normal */
+        } catch (ClassNotFoundException e) {
+            /* This should not happen, keep what we have read so far */
+            Log.w(TAG, e);
+        } finally {
+            ois.close();
+        }
+    }
+
+    private void write(List<Timer> timers) {
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream(32 * timers.size());
+            DataOutputStream out = new DataOutputStream(records);
+            for (Timer timer : timers) {
+                out.writeInt(timer.getHours());
+                out.writeInt(timer.getMinutes());
+                out.writeInt(timer.getSeconds());
+                out.writeInt(timer.isSilent() ? FLAG_SILENT : 0);
+                out.writeInt(timer.getTolerance());
+                if (timer.getDescription() == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] description = timer.getDescription().getBytes("UTF-8");
+                    out.writeInt(description.length);
+                    out.write(description);
+                }
+            }
+
+            AlarmFile.writeAtomically(m_context.getFileStreamPath(RECENT_TIMERS_FILE),
+                    AlarmFile.frame(MAGIC, VERSION, timers.size(), records));
+        } catch (IOException e) {
+            /* The list stays in memory, the next change tries again */
+            Log.w(TAG, e);
+        }
+    }
+
+}
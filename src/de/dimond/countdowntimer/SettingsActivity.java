@@ -32,6 +32,7 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
     private static final String ABOUT_NOTICE_KEY = "ABOUT_NOTICE";
     private static final String HELP_NOTICE_KEY = "HELP_NOTICE";
     private static final String VOLUME_SOURCE_KEY = "CTW_VOLUME_SOURCE";
+    private static final String HOST_TICKING_KEY = "CTW_HOST_TICKING";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -47,6 +48,9 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
             Integer.toString(AudioManager.STREAM_NOTIFICATION)
         });
 
+        /* The launcher can only count down by itself on newer platforms */
+        findPreference(HOST_TICKING_KEY).setEnabled(ApiCompat.hasChronometerCountDown());
+
         Preference batteryNotice = findPreference(REFRESH_NOTICE_KEY);
         batteryNotice.setOnPreferenceClickListener(this);
         Preference aboutNotice = findPreference(ABOUT_NOTICE_KEY);
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Process wide event loop for the countdowns. One thread owns all countdown state: other threads hand commands over
+ * with post() through a lock free queue, timed tasks are kept in a hashed timing wheel. Neither the number of threads
+ * nor the cost of a tick depend on the number of running countdowns, and the tick path takes no locks.
+ *
+ * Everything but post() must only be used on the loop thread, that is from a task or a posted command.
+ */
+public class TickScheduler {
+
+    private static final String TAG = "TickScheduler";
+    private static final boolean LOGD = false;
+
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 2048;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static final TickScheduler s_instance = new TickScheduler();
+
+    public static abstract class Task implements Runnable {
+        private Task m_prev;
+        private Task m_next;
+        private int m_bucket = -1;
+        private long m_deadlineTick;
+        private boolean m_cancelled;
+
+        public void cancel() {
+            s_instance.cancel(this);
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Runnable> m_commands = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean m_started = new AtomicBoolean(false);
+    private final Thread m_thread;
+
+    /* Only touched by the loop thread */
+    private final Task[] m_wheel = new Task[WHEEL_SIZE];
+    private final ArrayList<Task> m_expired = new ArrayList<Task>();
+    private final ArrayList<Runnable> m_deferred = new ArrayList<Runnable>();
+    private long m_currentTick;
+    private int m_size;
+
+    private TickScheduler() {
+        m_thread = new Thread(new Loop(), TAG);
+        m_thread.setDaemon(true);
+    }
+
+    public static TickScheduler getInstance() {
+        return s_instance;
+    }
+
+    /* Runs the command on the loop thread, may be called from any thread */
+    public void post(Runnable command) {
+        m_commands.add(command);
+        if (m_started.compareAndSet(false, true)) {
+            m_thread.start();
+        } else {
+            LockSupport.unpark(m_thread);
+        }
+    }
+
+    /* Runs the task once after the given delay, tasks may reschedule themselves from run() */
+    public void schedule(Task task, long delay) {
+        /* A task may have been cancelled by another task expiring in the same tick */
+        if (task.m_cancelled) {
+            return;
+        }
+        unlink(task);
+
+        long now = SystemClock.elapsedRealtime();
+        if (m_size == 0) {
+            m_currentTick = now / TICK_MILLIS;
+        }
+        link(task, now + delay);
+    }
+
+    /*
+     * Runs the command once the commands and tasks due in this pass of the loop have run, before the loop sleeps
+     * again. Lets work triggered by several of them be done once, without a wakeup of its own.
+     */
+    public void defer(Runnable command) {
+        m_deferred.add(command);
+    }
+
+    private void cancel(Task task) {
+        task.m_cancelled = true;
+        unlink(task);
+    }
+
+    private void link(Task task, long time) {
+        long tick = (time + TICK_MILLIS - 1) / TICK_MILLIS;
+        if (tick < m_currentTick) {
+            tick = m_currentTick;
+        }
+        int bucket = (int) (tick & WHEEL_MASK);
+        task.m_deadlineTick = tick;
+        task.m_bucket = bucket;
+        task.m_prev = null;
+        task.m_next = m_wheel[bucket];
+        if (task.m_next != null) {
+            task.m_next.m_prev = task;
+        }
+        m_wheel[bucket] = task;
+        m_size++;
+    }
+
+    private void unlink(Task task) {
+        if (task.m_bucket == -1) {
+            return;
+        }
+        if (task.m_prev != null) {
+            task.m_prev.m_next = task.m_next;
+        } else {
+            m_wheel[task.m_bucket] = task.m_next;
+        }
+        if (task.m_next != null) {
+            task.m_next.m_prev = task.m_prev;
+        }
+        task.m_prev = null;
+        task.m_next = null;
+        task.m_bucket = -1;
+        m_size--;
+    }
+
+    /* Returns the first tick within one rotation at which a task expires */
+    private long nextExpiringTick() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            long tick = m_currentTick + i;
+            for (Task task = m_wheel[(int) (tick & WHEEL_MASK)]; task != null; task = task.m_next) {
+                if (task.m_deadlineTick <= tick) {
+                    return tick;
+                }
+            }
+        }
+        return m_currentTick + WHEEL_SIZE;
+    }
+
+    /* Moves all tasks expired up to nowTick into m_expired */
+    private void expire(long nowTick) {
+        long ticks = nowTick - m_currentTick + 1;
+        if (ticks > WHEEL_SIZE) {
+            ticks = WHEEL_SIZE;
+        }
+        for (long i = 0; i < ticks; i++) {
+            int bucket = (int) ((m_currentTick + i) & WHEEL_MASK);
+            Task task = m_wheel[bucket];
+            while (task != null) {
+                Task next = task.m_next;
+                if (task.m_deadlineTick <= nowTick) {
+                    unlink(task);
+                    m_expired.add(task);
+                }
+                task = next;
+            }
+        }
+        m_currentTick = nowTick + 1;
+    }
+
+    private void runCommands() {
+        Runnable command;
+        while ((command = m_commands.poll()) != null) {
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, e);
+            }
+        }
+    }
+
+    /* Commands deferred while running others are run as well */
+    private void runDeferred() {
+        for (int i = 0; i < m_deferred.size(); i++) {
+            try {
+                m_deferred.get(i).run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, e);
+            }
+        }
+        m_deferred.clear();
+    }
+
+    private void runExpired() {
+        final int n = m_expired.size();
+        if (LOGD)
+            Log.d(TAG, "Running " + n + " expired tasks");
+        for (int i = 0; i < n; i++) {
+            Task task = m_expired.get(i);
+            if (task.m_cancelled) {
+                continue;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, e);
+            }
+        }
+        m_expired.clear();
+    }
+
+    private class Loop implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                runCommands();
+                /* Also after expired tasks, every pass ends here */
+                runDeferred();
+                /* A command posted after this point unparks us, or makes the next park return right away */
+                if (m_size == 0) {
+                    LockSupport.park(TickScheduler.this);
+                    continue;
+                }
+                long now = SystemClock.elapsedRealtime();
+                long wakeAt = nextExpiringTick() * TICK_MILLIS;
+                if (wakeAt > now) {
+                    LockSupport.parkNanos(TickScheduler.this, (wakeAt - now) * 1000000L);
+                    continue;
+                }
+                expire(now / TICK_MILLIS);
+                runExpired();
+            }
+        }
+
+    }
+
+}
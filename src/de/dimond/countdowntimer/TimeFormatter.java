@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+/**
+ * Renders times as HH:MM:SS without String.format. The parts of a running countdown come from a table of shared
+ * strings, so rendering a tick does not allocate.
+ */
+public class TimeFormatter {
+
+    /* Enough for the hours of Integer.MAX_VALUE seconds */
+    private static final int MAX_LENGTH = 12;
+
+    private static final char[] TENS = new char[100];
+    private static final char[] ONES = new char[100];
+    private static final String[] TWO_DIGITS = new String[100];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            TENS[i] = (char) ('0' + i / 10);
+            ONES[i] = (char) ('0' + i % 10);
+            TWO_DIGITS[i] = new String(new char[] { TENS[i], ONES[i] });
+        }
+    }
+
+    private TimeFormatter() {
+    }
+
+    public static String format(int hours, int minutes, int seconds) {
+        char[] buffer = new char[MAX_LENGTH];
+        int length = write(buffer, hours, minutes, seconds);
+        return new String(buffer, 0, length);
+    }
+
+    /* A single part of the time with at least two digits, shared strings for all values below 100 */
+    public static String formatPart(int value) {
+        return (value < 100) ? TWO_DIGITS[value] : Integer.toString(value);
+    }
+
+    private static int write(char[] buffer, int hours, int minutes, int seconds) {
+        int pos = 0;
+        if (hours >= 100) {
+            /* Rare, write the leading digits right to left */
+            int digits = 0;
+            for (int h = hours / 100; h > 0; h /= 10) {
+                digits++;
+            }
+            for (int h = hours / 100, i = digits - 1; i >= 0; h /= 10, i--) {
+                buffer[i] = (char) ('0' + h % 10);
+            }
+            pos = digits;
+            hours %= 100;
+        }
+        buffer[pos++] = TENS[hours];
+        buffer[pos++] = ONES[hours];
+        buffer[pos++] = ':';
+        buffer[pos++] = TENS[minutes];
+        buffer[pos++] = ONES[minutes];
+        buffer[pos++] = ':';
+        buffer[pos++] = TENS[seconds];
+        buffer[pos++] = ONES[seconds];
+        return pos;
+    }
+
+}
@@ -26,13 +26,15 @@ public class Timer implements Serializable {
     private final int m_seconds;
     private final String m_description;
     private final boolean m_isSilent;
+    private final int m_tolerance;
 
-    public Timer(int hours, int minutes, int seconds, String description, boolean isSilent) {
+    public Timer(int hours, int minutes, int seconds, String description, boolean isSilent, int tolerance) {
         this.m_hours = hours;
         this.m_minutes = minutes;
         this.m_seconds = seconds;
         this.m_description = description;
         this.m_isSilent = isSilent;
+        this.m_tolerance = tolerance;
     }
 
     public int getSeconds() {
@@ -55,6 +57,10 @@ public class Timer implements Serializable {
         return m_isSilent;
     }
 
+    public int getTolerance() {
+        return m_tolerance;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -91,10 +97,11 @@ public class Timer implements Serializable {
 
     @Override
     public String toString() {
+        String time = TimeFormatter.format(m_hours, m_minutes, m_seconds);
         if (m_description != null) {
-            return String.format("%02d:%02d:%02d (%s)", m_hours, m_minutes, m_seconds, m_description);
+            return time + " (" + m_description + ")";
         } else {
-            return String.format("%02d:%02d:%02d", m_hours, m_minutes, m_seconds);
+            return time;
         }
     }
 }
@@ -82,7 +82,7 @@ public class TimerSpinnerAdapter extends BaseAdapter {
         }
         TextView descriptionText = (TextView) layout.findViewById(R.id.spinner_description);
 
-        String timeString = String.format("%02d:%02d:%02d", timer.getHours(), timer.getMinutes(), timer.getSeconds());
+        String timeString = TimeFormatter.format(timer.getHours(), timer.getMinutes(), timer.getSeconds());
         timeText.setText(timeString);
         descriptionText.setText(timer.getDescription());
         return layout;
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+import android.widget.RemoteViews;
+
+/**
+ * Sends all widget updates of the process, at most a configurable number per second. Every widget has a single slot
+ * for its next update: a newer update replaces the one still waiting, so a slow launcher never makes work pile up.
+ * Updates submitted in the same wakeup are sent together at the end of it, and when the budget does not allow sending
+ * all of them the widgets closest to their deadline go first while the rest waits for the budget.
+ *
+ * Everything must be called on the TickScheduler thread.
+ */
+public class UpdateDispatcher {
+
+    private static final String TAG = "UpdateDispatcher";
+    private static final boolean LOGD = false;
+
+    /* The budget may be used up in bursts of up to one second */
+    private static final long MAX_CREDIT = 1000000;
+
+    private static final UpdateDispatcher s_instance = new UpdateDispatcher();
+
+    private static class Slot {
+        private int m_widgetId;
+        private RemoteViews m_views;
+        private boolean m_partial;
+        private long m_deadline;
+        /* When the widget started waiting, replacing the update does not change it */
+        private long m_since;
+    }
+
+    private static final Comparator<Slot> BY_DEADLINE = new Comparator<Slot>() {
+        @Override
+        public int compare(Slot a, Slot b) {
+            if (a.m_deadline != b.m_deadline) {
+                return (a.m_deadline < b.m_deadline) ? -1 : 1;
+            }
+            /* Equally due widgets take turns */
+            return (a.m_since < b.m_since) ? -1 : ((a.m_since == b.m_since) ? 0 : 1);
+        }
+    };
+
+    private final SparseArray<Slot> m_pending = new SparseArray<Slot>();
+    private final ArrayList<Slot> m_order = new ArrayList<Slot>();
+    private AppWidgetManager m_manager;
+
+    /* 0 means no limit */
+    private int m_maxUpdatesPerSecond = 0;
+    /* Budget in millionths of a second worth of updates */
+    private long m_credit = MAX_CREDIT;
+    private long m_lastRefill = 0;
+
+    /* Flushes at the end of the current pass of the loop */
+    private boolean m_flushDeferred = false;
+    private final Runnable m_deferredFlush = new Runnable() {
+        @Override
+        public void run() {
+            m_flushDeferred = false;
+            flush();
+        }
+    };
+
+    /* Flushes once the budget allows sending what is left */
+    private boolean m_flushScheduled = false;
+    private final TickScheduler.Task m_flushTask = new TickScheduler.Task() {
+        @Override
+        public void run() {
+            m_flushScheduled = false;
+            flush();
+        }
+    };
+
+    private long m_sent = 0;
+    private long m_replaced = 0;
+
+    private UpdateDispatcher() {
+    }
+
+    public static UpdateDispatcher getInstance() {
+        return s_instance;
+    }
+
+    public void setMaxUpdatesPerSecond(int maxUpdatesPerSecond) {
+        m_maxUpdatesPerSecond = Math.max(maxUpdatesPerSecond, 0);
+        m_credit = MAX_CREDIT;
+        m_lastRefill = SystemClock.elapsedRealtime();
+        deferFlush();
+    }
+
+    /*
+     * Sends views to the widget with the next flush, replacing any update of the widget still waiting. Widgets with
+     * an earlier deadline are served first, views without a deadline (0) before all others. A partial update is only
+     * valid on top of the layout of the last full update, see isFullUpdatePending().
+     */
+    public void submit(Context context, int widgetId, RemoteViews views, boolean partial, long deadline) {
+        if (m_manager == null) {
+            m_manager = AppWidgetManager.getInstance(context.getApplicationContext());
+        }
+        Slot slot = m_pending.get(widgetId);
+        if (slot == null) {
+            slot = new Slot();
+            slot.m_widgetId = widgetId;
+            slot.m_since = SystemClock.elapsedRealtime();
+            m_pending.put(widgetId, slot);
+        } else {
+            m_replaced++;
+        }
+        slot.m_views = views;
+        slot.m_partial = partial;
+        slot.m_deadline = deadline;
+        deferFlush();
+    }
+
+    /* Whether an update of the widget is waiting, a newer one replaces it */
+    public boolean isUpdatePending(int widgetId) {
+        return m_pending.get(widgetId) != null;
+    }
+
+    /* A partial update would replace this full update and lose its layout, so send a full update instead */
+    public boolean isFullUpdatePending(int widgetId) {
+        Slot slot = m_pending.get(widgetId);
+        return slot != null && !slot.m_partial;
+    }
+
+    /* Drops the waiting update of a deleted widget */
+    public void discard(int widgetId) {
+        m_pending.delete(widgetId);
+    }
+
+    private void deferFlush() {
+        if (m_flushDeferred || m_pending.size() == 0) {
+            return;
+        }
+        m_flushDeferred = true;
+        TickScheduler.getInstance().defer(m_deferredFlush);
+    }
+
+    private void scheduleFlush(long delay) {
+        if (m_flushScheduled || m_pending.size() == 0) {
+            return;
+        }
+        m_flushScheduled = true;
+        TickScheduler.getInstance().schedule(m_flushTask, delay);
+    }
+
+    private void flush() {
+        final int n = m_pending.size();
+        long cost = 0;
+        int allowed = n;
+        if (m_maxUpdatesPerSecond > 0) {
+            long now = SystemClock.elapsedRealtime();
+            m_credit = Math.min(m_credit + (now - m_lastRefill) * 1000, MAX_CREDIT);
+            m_lastRefill = now;
+            cost = MAX_CREDIT / m_maxUpdatesPerSecond;
+            allowed = (int) Math.min(m_credit / cost, n);
+        }
+        if (allowed == 0) {
+            scheduleFlush((cost - m_credit + 999) / 1000);
+            return;
+        }
+
+        for (int i = 0; i < n; i++) {
+            m_order.add(m_pending.valueAt(i));
+        }
+        if (allowed < n) {
+            Collections.sort(m_order, BY_DEADLINE);
+        }
+        if (LOGD)
+            Log.d(TAG, "Sending " + allowed + " of " + n + " updates");
+        for (int i = 0; i < allowed; i++) {
+            Slot slot = m_order.get(i);
+            m_pending.delete(slot.m_widgetId);
+            m_credit -= cost;
+            m_sent++;
+            try {
+                if (slot.m_partial) {
+                    ApiCompat.partiallyUpdateAppWidget(m_manager, slot.m_widgetId, slot.m_views);
+                } else {
+                    m_manager.updateAppWidget(slot.m_widgetId, slot.m_views);
+                }
+            } catch (RuntimeException e) {
+                /* The launcher or the system server went away, the next update tries again */
+                Log.w(TAG, e);
+            }
+        }
+        m_order.clear();
+
+        /* The rest waits for the budget, unless newer updates replace it first */
+        if (m_pending.size() > 0) {
+            scheduleFlush((cost - m_credit + 999) / 1000);
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Widget updates: " + m_sent + " sent, " + m_replaced + " replaced before sending, "
+                + m_pending.size() + " waiting, limit "
+                + ((m_maxUpdatesPerSecond > 0) ? m_maxUpdatesPerSecond + "/s" : "none"));
+    }
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * History of started, cancelled and expired timers in a memory mapped ring buffer of the last CAPACITY events. The
+ * header of the same file keeps running aggregates, so they are available without reading the events: the number of
+ * events of every type, the number of timers started today, the lateness of expired timers and the most used
+ * durations. Recording an event writes one record and updates the header, disk and memory use never grow.
+ *
+ * The most used durations are estimated with the space saving algorithm over TOP_SIZE counters. A duration that is
+ * used more often than 1 / TOP_SIZE of all starts is always among them, its count is at most the error too high.
+ */
+public class UsageHistory {
+
+    private static final String TAG = "UsageHistory";
+
+    private static final String HISTORY_FILE = "usage_history";
+
+    private static final int MAGIC = 0x43545548;
+    private static final int VERSION = 1;
+
+    private static final int CAPACITY = 1024;
+    private static final int TOP_SIZE = 8;
+
+    private static final int EVENT_START = 1;
+    private static final int EVENT_CANCEL = 2;
+    private static final int EVENT_EXPIRE = 3;
+
+    /* Header layout */
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_EVENTS = 16;
+    private static final int H_STARTS = 24;
+    private static final int H_CANCELS = 32;
+    private static final int H_EXPIRIES = 40;
+    private static final int H_LATENESS_SUM = 48;
+    private static final int H_DAY = 56;
+    private static final int H_DAY_COUNT = 60;
+    /* TOP_SIZE entries of duration, count and error */
+    private static final int H_TOP = 64;
+    private static final int TOP_ENTRY_SIZE = 12;
+    private static final int HEADER_SIZE = H_TOP + TOP_SIZE * TOP_ENTRY_SIZE;
+
+    /* Record layout: wall clock time, event type, duration in seconds or lateness in milliseconds */
+    private static final int R_TIME = 0;
+    private static final int R_TYPE = 8;
+    private static final int R_VALUE = 12;
+    private static final int RECORD_SIZE = 16;
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    private final File m_file;
+    private RandomAccessFile m_raf;
+    private MappedByteBuffer m_buffer;
+
+    private UsageHistory(File file) {
+        m_file = file;
+    }
+
+    /* Maps the history, creating it if necessary. If the file cannot be mapped nothing is recorded. */
+    public static UsageHistory open(Context context) {
+        UsageHistory history = new UsageHistory(context.getFileStreamPath(HISTORY_FILE));
+        try {
+            history.map();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            history.close();
+        }
+        return history;
+    }
+
+    private void map() throws IOException {
+        m_raf = new RandomAccessFile(m_file, "rw");
+        long size = HEADER_SIZE + (long) CAPACITY * RECORD_SIZE;
+        boolean valid = false;
+        if (m_raf.length() == size) {
+            valid = m_raf.readInt() == MAGIC && m_raf.readInt() == VERSION && m_raf.readInt() == CAPACITY;
+        }
+        if (!valid) {
+            if (m_raf.length() > 0) {
+                Log.w(TAG, "Discarding unknown usage history");
+            }
+            m_raf.setLength(0);
+            m_raf.setLength(size);
+        }
+        m_buffer = m_raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (!valid) {
+            m_buffer.putInt(H_MAGIC, MAGIC);
+            m_buffer.putInt(H_VERSION, VERSION);
+            m_buffer.putInt(H_CAPACITY, CAPACITY);
+        }
+    }
+
+    public void recordStart(int duration) {
+        if (m_buffer == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        append(now, EVENT_START, duration);
+        increment(H_STARTS);
+
+        int day = day(now);
+        if (m_buffer.getInt(H_DAY) != day) {
+            m_buffer.putInt(H_DAY, day);
+            m_buffer.putInt(H_DAY_COUNT, 0);
+        }
+        m_buffer.putInt(H_DAY_COUNT, m_buffer.getInt(H_DAY_COUNT) + 1);
+
+        countDuration(duration);
+    }
+
+    public void recordCancel() {
+        if (m_buffer == null) {
+            return;
+        }
+        append(System.currentTimeMillis(), EVENT_CANCEL, 0);
+        increment(H_CANCELS);
+    }
+
+    public void recordExpiry(long lateness) {
+        if (m_buffer == null) {
+            return;
+        }
+        int value = (int) Math.min(Math.max(lateness, 0), Integer.MAX_VALUE);
+        append(System.currentTimeMillis(), EVENT_EXPIRE, value);
+        increment(H_EXPIRIES);
+        m_buffer.putLong(H_LATENESS_SUM, m_buffer.getLong(H_LATENESS_SUM) + value);
+    }
+
+    /* Timers started since local midnight */
+    public int getTodayCount() {
+        if (m_buffer == null || m_buffer.getInt(H_DAY) != day(System.currentTimeMillis())) {
+            return 0;
+        }
+        return m_buffer.getInt(H_DAY_COUNT);
+    }
+
+    /* Average lateness of expired timers in milliseconds, -1 if none expired yet */
+    public long getAverageLateness() {
+        if (m_buffer == null) {
+            return -1;
+        }
+        long expiries = m_buffer.getLong(H_EXPIRIES);
+        return (expiries == 0) ? -1 : m_buffer.getLong(H_LATENESS_SUM) / expiries;
+    }
+
+    public void close() {
+        m_buffer = null;
+        if (m_raf != null) {
+            try {
+                m_raf.close();
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+            m_raf = null;
+        }
+    }
+
+    private void append(long time, int type, int value) {
+        long events = m_buffer.getLong(H_EVENTS);
+        int offset = HEADER_SIZE + (int) (events % CAPACITY) * RECORD_SIZE;
+        m_buffer.putLong(offset + R_TIME, time);
+        m_buffer.putInt(offset + R_TYPE, type);
+        m_buffer.putInt(offset + R_VALUE, value);
+        m_buffer.putLong(H_EVENTS, events + 1);
+    }
+
+    private void increment(int offset) {
+        m_buffer.putLong(offset, m_buffer.getLong(offset) + 1);
+    }
+
+    private void countDuration(int duration) {
+        int min = -1;
+        for (int i = 0; i < TOP_SIZE; i++) {
+            int offset = H_TOP + i * TOP_ENTRY_SIZE;
+            int count = m_buffer.getInt(offset + 4);
+            if (count > 0 && m_buffer.getInt(offset) == duration) {
+                m_buffer.putInt(offset + 4, count + 1);
+                return;
+            }
+            if (min < 0 || count < m_buffer.getInt(H_TOP + min * TOP_ENTRY_SIZE + 4)) {
+                min = i;
+            }
+        }
+        /* Replace the least counted duration, a free entry has count 0 */
+        int offset = H_TOP + min * TOP_ENTRY_SIZE;
+        int count = m_buffer.getInt(offset + 4);
+        m_buffer.putInt(offset, duration);
+        m_buffer.putInt(offset + 4, count + 1);
+        m_buffer.putInt(offset + 8, count);
+    }
+
+    private static int day(long time) {
+        return (int) ((time + TimeZone.getDefault().getOffset(time)) / DAY_MILLIS);
+    }
+
+    public void dump(PrintWriter writer, int lastEvents) {
+        if (m_buffer == null) {
+            writer.println("Usage history: not available");
+            return;
+        }
+        long events = m_buffer.getLong(H_EVENTS);
+        writer.println("Usage history: " + events + " events, " + m_buffer.getLong(H_STARTS) + " started, "
+                + m_buffer.getLong(H_CANCELS) + " cancelled, " + m_buffer.getLong(H_EXPIRIES) + " expired, "
+                + getTodayCount() + " started today, average lateness " + getAverageLateness() + "ms");
+
+        int[] order = new int[TOP_SIZE];
+        int n = 0;
+        for (int i = 0; i < TOP_SIZE; i++) {
+            if (m_buffer.getInt(H_TOP + i * TOP_ENTRY_SIZE + 4) > 0) {
+                order[n++] = i;
+            }
+        }
+        /* Insertion sort by descending count, there are only TOP_SIZE entries */
+        for (int i = 1; i < n; i++) {
+            int entry = order[i];
+            int count = m_buffer.getInt(H_TOP + entry * TOP_ENTRY_SIZE + 4);
+            int j = i - 1;
+            while (j >= 0 && m_buffer.getInt(H_TOP + order[j] * TOP_ENTRY_SIZE + 4) < count) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = entry;
+        }
+        writer.println("  Most used durations:");
+        for (int i = 0; i < n; i++) {
+            int offset = H_TOP + order[i] * TOP_ENTRY_SIZE;
+            int duration = m_buffer.getInt(offset);
+            writer.println("    " + TimeFormatter.format(duration / 3600, (duration / 60) % 60, duration % 60) + ": "
+                    + m_buffer.getInt(offset + 4) + " (error " + m_buffer.getInt(offset + 8) + ")");
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        long first = Math.max(events - Math.min(lastEvents, CAPACITY), 0);
+        writer.println("  Last events:");
+        for (long event = first; event < events; event++) {
+            int offset = HEADER_SIZE + (int) (event % CAPACITY) * RECORD_SIZE;
+            int type = m_buffer.getInt(offset + R_TYPE);
+            int value = m_buffer.getInt(offset + R_VALUE);
+            String line = "    " + format.format(new Date(m_buffer.getLong(offset + R_TIME)));
+            if (type == EVENT_START) {
+                line += " start " + TimeFormatter.format(value / 3600, (value / 60) % 60, value % 60);
+            } else if (type == EVENT_CANCEL) {
+                line += " cancel";
+            } else if (type == EVENT_EXPIRE) {
+                line += " expire, " + value + "ms late";
+            } else {
+                line += " unknown event " + type;
+            }
+            writer.println(line);
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.SparseArray;
+import android.widget.RemoteViews;
+
+/**
+ * Per widget cache of the PendingIntents and of the view of an idle widget. Creating a PendingIntent is a call into
+ * the system, the intents of a widget never change, so they are created once per process and widget.
+ *
+ * Only views that are never modified after building can be cached, RemoteViews collect every action applied to
+ * them. The views of a running timer are therefore still built for every full update, from the cached intents.
+ */
+public class WidgetCache {
+
+    private static final SparseArray<PendingIntent> s_clickIntents = new SparseArray<PendingIntent>();
+    private static final SparseArray<PendingIntent> s_resetIntents = new SparseArray<PendingIntent>();
+    private static final SparseArray<RemoteViews> s_idleViews = new SparseArray<RemoteViews>();
+
+    private WidgetCache() {
+    }
+
+    /* Opens the new timer dialog for the widget */
+    public static synchronized PendingIntent getClickIntent(Context context, int widgetId) {
+        PendingIntent pendingIntent = s_clickIntents.get(widgetId);
+        if (pendingIntent == null) {
+            Intent intent = new Intent(context, NewTimerActivity.class);
+            intent.setData(Uri.parse("widget://" + widgetId));
+
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            intent.putExtra(CountdownTimerService.INTENT_DATA_WIDGET_ID, widgetId);
+
+            pendingIntent = PendingIntent.getActivity(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+            s_clickIntents.put(widgetId, pendingIntent);
+        }
+        return pendingIntent;
+    }
+
+    /* Resets the widget once the notification of its expired timer is removed */
+    public static synchronized PendingIntent getResetIntent(Context context, int widgetId) {
+        PendingIntent pendingIntent = s_resetIntents.get(widgetId);
+        if (pendingIntent == null) {
+            Intent intent = new Intent(context, CountdownTimerService.class);
+            intent.setAction(CountdownTimerService.INTENT_RESET_WIDGET);
+            intent.putExtra(CountdownTimerService.INTENT_DATA_WIDGET_ID, widgetId);
+            intent.setData(Uri.parse("widget://" + widgetId));
+
+            pendingIntent = PendingIntent.getService(context, 0, intent, 0);
+            s_resetIntents.put(widgetId, pendingIntent);
+        }
+        return pendingIntent;
+    }
+
+    /* The view of a widget without a running timer, it must not be modified */
+    public static synchronized RemoteViews getIdleView(Context context, int widgetId) {
+        RemoteViews views = s_idleViews.get(widgetId);
+        if (views == null) {
+            views = CountdownTimerAppWidgetProvider.buildIdleView(context, widgetId);
+            s_idleViews.put(widgetId, views);
+        }
+        return views;
+    }
+
+    /* Forgets everything about a deleted widget */
+    public static synchronized void invalidate(int widgetId) {
+        PendingIntent clickIntent = s_clickIntents.get(widgetId);
+        if (clickIntent != null) {
+            clickIntent.cancel();
+        }
+        PendingIntent resetIntent = s_resetIntents.get(widgetId);
+        if (resetIntent != null) {
+            resetIntent.cancel();
+        }
+        s_clickIntents.delete(widgetId);
+        s_resetIntents.delete(widgetId);
+        s_idleViews.delete(widgetId);
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares AlarmQueue with the sorted copy of a HashMap that CountdownTimerService used to find the earliest alarm.
+ * Both are measured at a constant number of alarms for the two operations of the service: rescheduling one alarm
+ * and looking up the earliest (addAlarm() followed by scheduleAlarm()), and removing the earliest alarm (one step of
+ * the stale alarm pruning). Run with main(), prints nanoseconds per operation.
+ */
+public class AlarmQueueBenchmark {
+
+    private static final int[] SIZES = { 10, 1000, 100000 };
+    private static final long MIN_NANOS = 500L * 1000 * 1000;
+
+    interface Operation {
+        public void run(int i);
+    }
+
+    public static void main(String[] args) {
+        System.out.println("alarms   operation            sorted copy ns/op   AlarmQueue ns/op");
+        for (int size : SIZES) {
+            final Map<Integer, Alarm> map = new HashMap<Integer, Alarm>();
+            final AlarmQueue queue = new AlarmQueue();
+            Random random = new Random(size);
+            for (int id = 0; id < size; id++) {
+                Alarm alarm = new Alarm(random.nextInt(1000000), null, false, 0);
+                map.put(id, alarm);
+                queue.put(id, alarm);
+            }
+            final int n = size;
+            final Alarm[] alarms = new Alarm[1024];
+            for (int i = 0; i < alarms.length; i++) {
+                alarms[i] = new Alarm(random.nextInt(1000000), null, false, 0);
+            }
+
+            long mapReschedule = measure(new Operation() {
+                @Override
+                public void run(int i) {
+                    map.put(i % n, alarms[i & 1023]);
+                    consume(smallestValue(map).getValue());
+                }
+            });
+            long queueReschedule = measure(new Operation() {
+                @Override
+                public void run(int i) {
+                    queue.put(i % n, alarms[i & 1023]);
+                    consume(queue.peek());
+                }
+            });
+            print(size, "reschedule + peek", mapReschedule, queueReschedule);
+
+            /* The removed alarm is added again with a later deadline, so the size stays the same */
+            long mapPrune = measure(new Operation() {
+                @Override
+                public void run(int i) {
+                    Map.Entry<Integer, Alarm> earliest = smallestValue(map);
+                    int id = earliest.getKey();
+                    map.remove(id);
+                    map.put(id, new Alarm(earliest.getValue().m_when + 1000000, null, false, 0));
+                }
+            });
+            long queuePrune = measure(new Operation() {
+                @Override
+                public void run(int i) {
+                    int id = queue.peekId();
+                    Alarm earliest = queue.remove(id);
+                    queue.put(id, new Alarm(earliest.m_when + 1000000, null, false, 0));
+                }
+            });
+            print(size, "prune earliest", mapPrune, queuePrune);
+        }
+    }
+
+    /* The former CountdownTimerService.smallestValue() */
+    private static <K, V> Map.Entry<K, V> smallestValue(Map<K, V> map) {
+        if (map.size() == 0) {
+            return null;
+        }
+        List<Map.Entry<K, V>> list = new LinkedList<Map.Entry<K, V>>(map.entrySet());
+        Collections.sort(list, new Comparator<Map.Entry<K, V>>() {
+            @SuppressWarnings("unchecked")
+            public int compare(Map.Entry<K, V> o1, Map.Entry<K, V> o2) {
+                return ((Comparable<V>) o1.getValue()).compareTo(o2.getValue());
+            }
+        });
+        return list.get(0);
+    }
+
+    private static long s_sink;
+
+    private static void consume(Alarm alarm) {
+        s_sink += alarm.m_when;
+    }
+
+    /* Runs the operation until MIN_NANOS passed, twice to warm up first, returns nanoseconds per operation */
+    static long measure(Operation operation) {
+        long result = 0;
+        for (int round = 0; round < 2; round++) {
+            int count = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                operation.run(count++);
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < MIN_NANOS);
+            result = elapsed / count;
+        }
+        return result;
+    }
+
+    private static void print(int size, String operation, long before, long after) {
+        System.out.println(String.format("%-8d %-20s %17d %18d", size, operation, before, after));
+    }
+
+}
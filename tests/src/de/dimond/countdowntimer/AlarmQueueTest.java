@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class AlarmQueueTest extends TestCase {
+
+    private static Alarm alarm(long when) {
+        return new Alarm(when, null, false, 0);
+    }
+
+    public void testEmpty() {
+        AlarmQueue queue = new AlarmQueue();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+        assertNull(queue.peekSecond());
+        assertNull(queue.remove(1));
+        try {
+            queue.peekId();
+            fail();
+        } catch (IllegalStateException e) {
+            /* Expected */
+        }
+    }
+
+    public void testHeapOrder() {
+        AlarmQueue queue = new AlarmQueue();
+        Random random = new Random(1);
+        for (int id = 0; id < 1000; id++) {
+            queue.put(id, alarm(random.nextInt(100000)));
+        }
+        long last = Long.MIN_VALUE;
+        int count = 0;
+        while (!queue.isEmpty()) {
+            Alarm earliest = queue.peek();
+            Alarm second = queue.peekSecond();
+            assertTrue(earliest.m_when >= last);
+            if (second != null) {
+                assertTrue(second.m_when >= earliest.m_when);
+            }
+            last = earliest.m_when;
+            assertSame(earliest, queue.remove(queue.peekId()));
+            count++;
+        }
+        assertEquals(1000, count);
+    }
+
+    public void testUpdate() {
+        AlarmQueue queue = new AlarmQueue();
+        queue.put(1, alarm(100));
+        queue.put(2, alarm(200));
+        queue.put(3, alarm(300));
+        assertEquals(1, queue.peekId());
+
+        /* Later, the next alarm moves to the front */
+        queue.put(1, alarm(400));
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.peekId());
+        assertEquals(300, queue.peekSecond().m_when);
+
+        /* Earlier, back to the front */
+        queue.put(3, alarm(50));
+        assertEquals(3, queue.peekId());
+        assertEquals(50, queue.get(3).m_when);
+        assertEquals(400, queue.get(1).m_when);
+    }
+
+    public void testRemove() {
+        AlarmQueue queue = new AlarmQueue();
+        for (int id = 1; id <= 5; id++) {
+            queue.put(id, alarm(id * 10));
+        }
+        assertEquals(30, queue.remove(3).m_when);
+        assertFalse(queue.contains(3));
+        assertNull(queue.get(3));
+        assertNull(queue.remove(3));
+        assertEquals(4, queue.size());
+
+        assertEquals(10, queue.remove(1).m_when);
+        assertEquals(2, queue.peekId());
+        assertEquals(40, queue.peekSecond().m_when);
+
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.contains(2));
+    }
+
+    public void testCopyIsIndependent() {
+        AlarmQueue queue = new AlarmQueue();
+        queue.put(1, alarm(10));
+        queue.put(2, alarm(20));
+        AlarmQueue copy = queue.copy();
+        queue.remove(1);
+        assertEquals(2, copy.size());
+        assertEquals(1, copy.peekId());
+    }
+
+    /* Random puts, updates and removes, including negative ids, against a map */
+    public void testAgainstReference() {
+        AlarmQueue queue = new AlarmQueue();
+        Map<Integer, Alarm> reference = new HashMap<Integer, Alarm>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            int id = random.nextInt(400) - 200;
+            if (random.nextInt(3) == 0) {
+                assertSame(reference.remove(id), queue.remove(id));
+            } else {
+                Alarm alarm = alarm(random.nextInt(1000));
+                reference.put(id, alarm);
+                queue.put(id, alarm);
+            }
+            assertEquals(reference.size(), queue.size());
+            if (!reference.isEmpty()) {
+                long min = Long.MAX_VALUE;
+                for (Alarm alarm : reference.values()) {
+                    min = Math.min(min, alarm.m_when);
+                }
+                assertEquals(min, queue.peek().m_when);
+                assertSame(reference.get(queue.peekId()), queue.peek());
+            }
+        }
+        for (Map.Entry<Integer, Alarm> entry : reference.entrySet()) {
+            assertSame(entry.getValue(), queue.get(entry.getKey()));
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares AlarmQueue with the version that kept heap positions in a HashMap<Integer, Integer> and sifted by reading
+ * the Alarm objects. Measured at a constant number of alarms for the paths of CountdownTimerService: rescheduling an
+ * alarm (new timer), cancelling and restarting one (cancel, formerly containsKey, get and remove) and delivering the
+ * earliest one (alert). Run with main(), prints nanoseconds per operation.
+ */
+public class BoxedAlarmQueueBenchmark {
+
+    private static final int[] SIZES = { 10, 1000, 100000 };
+
+    public static void main(String[] args) {
+        System.out.println("alarms   operation            boxed ns/op   AlarmQueue ns/op");
+        for (int size : SIZES) {
+            final BoxedAlarmQueue boxed = new BoxedAlarmQueue();
+            final AlarmQueue queue = new AlarmQueue();
+            Random random = new Random(size);
+            for (int id = 0; id < size; id++) {
+                Alarm alarm = new Alarm(random.nextInt(1000000), null, false, 0);
+                boxed.put(id, alarm);
+                queue.put(id, alarm);
+            }
+            final int n = size;
+            final Alarm[] alarms = new Alarm[1024];
+            for (int i = 0; i < alarms.length; i++) {
+                alarms[i] = new Alarm(random.nextInt(1000000), null, false, 0);
+            }
+
+            long boxedReschedule = AlarmQueueBenchmark.measure(new AlarmQueueBenchmark.Operation() {
+                @Override
+                public void run(int i) {
+                    boxed.put(i % n, alarms[i & 1023]);
+                }
+            });
+            long queueReschedule = AlarmQueueBenchmark.measure(new AlarmQueueBenchmark.Operation() {
+                @Override
+                public void run(int i) {
+                    queue.put(i % n, alarms[i & 1023]);
+                }
+            });
+            print(size, "reschedule", boxedReschedule, queueReschedule);
+
+            /* The cancelled timer is started again, so the size stays the same */
+            long boxedCancel = AlarmQueueBenchmark.measure(new AlarmQueueBenchmark.Operation() {
+                @Override
+                public void run(int i) {
+                    int id = (i * 7919) % n;
+                    if (boxed.contains(id)) {
+                        boxed.get(id);
+                        boxed.remove(id);
+                    }
+                    boxed.put(id, alarms[i & 1023]);
+                }
+            });
+            long queueCancel = AlarmQueueBenchmark.measure(new AlarmQueueBenchmark.Operation() {
+                @Override
+                public void run(int i) {
+                    int id = (i * 7919) % n;
+                    queue.remove(id);
+                    queue.put(id, alarms[i & 1023]);
+                }
+            });
+            print(size, "cancel + restart", boxedCancel, queueCancel);
+
+            long boxedAlert = AlarmQueueBenchmark.measure(new AlarmQueueBenchmark.Operation() {
+                @Override
+                public void run(int i) {
+                    int id = boxed.peekId();
+                    Alarm earliest = boxed.remove(id);
+                    boxed.put(id, new Alarm(earliest.m_when + 1000000, null, false, 0));
+                }
+            });
+            long queueAlert = AlarmQueueBenchmark.measure(new AlarmQueueBenchmark.Operation() {
+                @Override
+                public void run(int i) {
+                    int id = queue.peekId();
+                    Alarm earliest = queue.remove(id);
+                    queue.put(id, new Alarm(earliest.m_when + 1000000, null, false, 0));
+                }
+            });
+            print(size, "deliver earliest", boxedAlert, queueAlert);
+        }
+    }
+
+    private static void print(int size, String operation, long before, long after) {
+        System.out.println(String.format("%-8d %-20s %11d %18d", size, operation, before, after));
+    }
+
+    /* The former AlarmQueue, reduced to what the benchmark uses */
+    private static class BoxedAlarmQueue {
+
+        private int[] m_ids = new int[8];
+        private Alarm[] m_alarms = new Alarm[8];
+        private int m_size = 0;
+        private final Map<Integer, Integer> m_positions = new HashMap<Integer, Integer>();
+
+        public boolean contains(int widgetId) {
+            return m_positions.containsKey(widgetId);
+        }
+
+        public Alarm get(int widgetId) {
+            Integer position = m_positions.get(widgetId);
+            return (position == null) ? null : m_alarms[position];
+        }
+
+        public int peekId() {
+            return m_ids[0];
+        }
+
+        public void put(int widgetId, Alarm alarm) {
+            Integer position = m_positions.get(widgetId);
+            if (position != null) {
+                int i = position;
+                long oldWhen = m_alarms[i].m_when;
+                m_alarms[i] = alarm;
+                if (alarm.m_when < oldWhen) {
+                    siftUp(i);
+                } else {
+                    siftDown(i);
+                }
+                return;
+            }
+            if (m_size == m_ids.length) {
+                int[] ids = new int[m_size * 2];
+                Alarm[] alarms = new Alarm[m_size * 2];
+                System.arraycopy(m_ids, 0, ids, 0, m_size);
+                System.arraycopy(m_alarms, 0, alarms, 0, m_size);
+                m_ids = ids;
+                m_alarms = alarms;
+            }
+            m_ids[m_size] = widgetId;
+            m_alarms[m_size] = alarm;
+            m_positions.put(widgetId, m_size);
+            m_size++;
+            siftUp(m_size - 1);
+        }
+
+        public Alarm remove(int widgetId) {
+            Integer position = m_positions.remove(widgetId);
+            if (position == null) {
+                return null;
+            }
+            int i = position;
+            Alarm removed = m_alarms[i];
+            m_size--;
+            if (i != m_size) {
+                move(m_size, i);
+                if (m_alarms[i].m_when < removed.m_when) {
+                    siftUp(i);
+                } else {
+                    siftDown(i);
+                }
+            }
+            m_alarms[m_size] = null;
+            return removed;
+        }
+
+        private void move(int from, int to) {
+            m_ids[to] = m_ids[from];
+            m_alarms[to] = m_alarms[from];
+            m_positions.put(m_ids[to], to);
+        }
+
+        private void siftUp(int i) {
+            int id = m_ids[i];
+            Alarm alarm = m_alarms[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (m_alarms[parent].m_when <= alarm.m_when) {
+                    break;
+                }
+                move(parent, i);
+                i = parent;
+            }
+            m_ids[i] = id;
+            m_alarms[i] = alarm;
+            m_positions.put(id, i);
+        }
+
+        private void siftDown(int i) {
+            int id = m_ids[i];
+            Alarm alarm = m_alarms[i];
+            int half = m_size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                int right = child + 1;
+                if (right < m_size && m_alarms[right].m_when < m_alarms[child].m_when) {
+                    child = right;
+                }
+                if (alarm.m_when <= m_alarms[child].m_when) {
+                    break;
+                }
+                move(child, i);
+                i = child;
+            }
+            m_ids[i] = id;
+            m_alarms[i] = alarm;
+            m_positions.put(id, i);
+        }
+    }
+
+}
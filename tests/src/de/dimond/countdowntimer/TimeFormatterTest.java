@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2010 Jonathan Dimond
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.dimond.countdowntimer;
+
+import java.lang.management.ManagementFactory;
+
+import junit.framework.TestCase;
+
+public class TimeFormatterTest extends TestCase {
+
+    private static final int TICKS = 100000;
+
+    public void testFormat() {
+        assertEquals("00:00:00", TimeFormatter.format(0, 0, 0));
+        assertEquals("00:00:59", TimeFormatter.format(0, 0, 59));
+        assertEquals("01:01:01", TimeFormatter.format(1, 1, 1));
+        assertEquals("12:34:56", TimeFormatter.format(12, 34, 56));
+        assertEquals("99:59:59", TimeFormatter.format(99, 59, 59));
+        assertEquals("100:00:00", TimeFormatter.format(100, 0, 0));
+        assertEquals("12345:06:07", TimeFormatter.format(12345, 6, 7));
+    }
+
+    public void testFormatPart() {
+        assertEquals("00", TimeFormatter.formatPart(0));
+        assertEquals("07", TimeFormatter.formatPart(7));
+        assertEquals("59", TimeFormatter.formatPart(59));
+        assertEquals("100", TimeFormatter.formatPart(100));
+        assertSame(TimeFormatter.formatPart(42), TimeFormatter.formatPart(42));
+    }
+
+    /* Needs the allocation counter of the HotSpot JVM, passes without checking anything elsewhere */
+    public void testTickDoesNotAllocate() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        /* Let the JIT compile the tick path first */
+        int checksum = tick();
+
+        long before = bean.getThreadAllocatedBytes(thread);
+        checksum += tick();
+        long allocated = bean.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(checksum != 0);
+        /* A single allocation per tick would add up to at least 16 bytes * TICKS */
+        assertTrue("Allocated " + allocated + " bytes in " + TICKS + " ticks", allocated < 1024);
+    }
+
+    /* The parts of a countdown below 100 hours, as CountdownTask renders them */
+    private static int tick() {
+        int checksum = 0;
+        for (int i = 0; i < TICKS; i++) {
+            int seconds = i * 7;
+            checksum += TimeFormatter.formatPart((seconds / 3600) % 100).charAt(1);
+            checksum += TimeFormatter.formatPart((seconds / 60) % 60).charAt(1);
+            checksum += TimeFormatter.formatPart(seconds % 60).charAt(1);
+        }
+        return checksum;
+    }
+
+}